@@ -19,8 +19,12 @@
 
 package studio.jkb.supermod;
 
+import java.util.Arrays;
+import java.util.BitSet;
+
 import heronarts.lx.LX;
 import heronarts.lx.LXDeviceComponent;
+import heronarts.lx.LXLoopTask;
 import heronarts.lx.effect.LXEffect;
 import heronarts.lx.midi.LXMidiInput;
 import heronarts.lx.midi.LXMidiOutput;
@@ -36,6 +40,7 @@ import heronarts.lx.parameter.LXListenableNormalizedParameter;
 import heronarts.lx.parameter.LXParameter;
 import heronarts.lx.parameter.LXParameterListener;
 import heronarts.lx.pattern.LXPattern;
+import heronarts.lx.utils.LXUtils;
 import studio.jkb.supermod.SuperMod.Device.ModParameter;
 
 @LXMidiSurface.Name("Akai APC Mini mk2 SuperMod")
@@ -185,6 +190,14 @@ public class APCminiMk2 extends LXMidiSurface implements LXMidiSurface.Bidirecti
 
   private boolean shiftOn = false;
 
+  /**
+   * Shift+Mute clears the whole project, so it must be pressed
+   * twice within this time to take effect.
+   */
+  private static final long CLEAR_ALL_CONFIRM_MS = 1000;
+
+  private long clearAllRequested = 0;
+
   private final DeviceListener deviceListener = new DeviceListener();
 
   private class DeviceListener implements LXParameterListener {
@@ -197,6 +210,10 @@ public class APCminiMk2 extends LXMidiSurface implements LXMidiSurface.Bidirecti
     private final LXListenableNormalizedParameter[] knobs = new LXListenableNormalizedParameter[PARAMETER_NUM];
     private final ModParameter[] mods = new ModParameter[SUPERMOD_NUM_MODS];
 
+    // Lookup from registered parameter to knob or mod indices
+    private final ParameterSlotIndex knobIndex = new ParameterSlotIndex();
+    private final ParameterSlotIndex modIndex = new ParameterSlotIndex();
+
     DeviceListener() {
       for (int i = 0; i < this.knobs.length; ++i) {
         this.knobs[i] = null;
@@ -259,8 +276,7 @@ public class APCminiMk2 extends LXMidiSurface implements LXMidiSurface.Bidirecti
               break;
             }
             this.knobs[i] = parameter;
-            int patternButton = getPatternButton(i);
-            if (parameter != null) {
+            if (parameter != null && this.knobIndex.add(parameter, i)) {
               parameter.addListener(this);
             }
             ++i;
@@ -270,7 +286,7 @@ public class APCminiMk2 extends LXMidiSurface implements LXMidiSurface.Bidirecti
               break;
             }
             this.mods[m] = mod;
-            if (mod != null) {
+            if (mod != null && this.modIndex.add(mod, m)) {
               mod.addListener(this);
             }
             if (isSuperMod()) {
@@ -294,7 +310,7 @@ public class APCminiMk2 extends LXMidiSurface implements LXMidiSurface.Bidirecti
     }
 
     private ModParameter[] getDeviceRemoteMods() {
-      return SuperMod.current.getRemoteMods(this.device);
+      return SuperMod.current.getRemoteMods(APCminiMk2.this, this.device, 0, this.mods.length);
     }
 
     @Override
@@ -306,9 +322,10 @@ public class APCminiMk2 extends LXMidiSurface implements LXMidiSurface.Bidirecti
           register(((LXChannel) this.channel).getFocusedPattern());
         }
       } else if (isSuperMod()) {
-        for (int i = 0; i < this.mods.length; ++i) {
-          if (parameter == this.mods[i]) {
-            sendSMIndicator((ModParameter)parameter, i);
+        final ParameterSlotIndex.Slots slots = this.modIndex.get(parameter);
+        if (slots != null) {
+          for (int s = 0; s < slots.size(); ++s) {
+            sendSMIndicator((ModParameter)parameter, slots.get(s));
           }
         }
       }
@@ -327,18 +344,18 @@ public class APCminiMk2 extends LXMidiSurface implements LXMidiSurface.Bidirecti
       if (parameter != null) {
         switch (parameter.getState()) {
           case SUPERMOD:
-            sendNoteOn(LED_SUPERMOD_MODULATION_SUPERMOD_BEHAVIOR, patternButton, LED_SUPERMOD_MODULATION_SUPERMOD_COLOR);
+            setLed(LED_SUPERMOD_MODULATION_SUPERMOD_BEHAVIOR, patternButton, LED_SUPERMOD_MODULATION_SUPERMOD_COLOR);
             break;
           case OTHER:
-            sendNoteOn(LED_SUPERMOD_MODULATION_OTHER_BEHAVIOR, patternButton, LED_SUPERMOD_MODULATION_OTHER_COLOR);
+            setLed(LED_SUPERMOD_MODULATION_OTHER_BEHAVIOR, patternButton, LED_SUPERMOD_MODULATION_OTHER_COLOR);
             break;
           case EMPTY:
           default:
-            sendNoteOn(LED_SUPERMOD_MODULATION_NONE_BEHAVIOR, patternButton, LED_SUPERMOD_MODULATION_NONE_COLOR);
+            setLed(LED_SUPERMOD_MODULATION_NONE_BEHAVIOR, patternButton, LED_SUPERMOD_MODULATION_NONE_COLOR);
             break;
         }
       } else {
-        sendNoteOn(MIDI_CHANNEL_MULTI_100_PERCENT, patternButton, LED_OFF);
+        setLed(MIDI_CHANNEL_MULTI_100_PERCENT, patternButton, LED_OFF);
       }
     }
 
@@ -400,6 +417,12 @@ public class APCminiMk2 extends LXMidiSurface implements LXMidiSurface.Bidirecti
       }
     }
 
+    public void onSMApplyTemplate() {
+      if (this.device != null) {
+        SuperMod.current.applyTemplate(APCminiMk2.this, this.mods);
+      }
+    }
+
     public void onSMIndicatorButton(int index) {
       ModParameter mod = this.mods[index];
       if (mod != null) {
@@ -409,22 +432,28 @@ public class APCminiMk2 extends LXMidiSurface implements LXMidiSurface.Bidirecti
 
     private void unregister(boolean clearButtons) {
       if (this.device != null) {
+        for (LXParameter parameter : this.knobIndex.parameters()) {
+          ((LXListenableNormalizedParameter) parameter).removeListener(this);
+        }
+        this.knobIndex.clear();
+        for (LXParameter mod : this.modIndex.parameters()) {
+          ((ModParameter) mod).removeListener(this);
+        }
+        this.modIndex.clear();
         for (int i = 0; i < this.knobs.length; ++i) {
           if (this.knobs[i] != null) {
-            this.knobs[i].removeListener(this);
             this.knobs[i] = null;
             if (clearButtons) {
               int patternButton = getPatternButton(i);
-              sendNoteOn(MIDI_CHANNEL_SINGLE, patternButton, LED_OFF);
-              sendNoteOn(MIDI_CHANNEL_SINGLE, patternButton - CLIP_LAUNCH_COLUMNS, LED_OFF);
-              sendNoteOn(MIDI_CHANNEL_SINGLE, patternButton - (CLIP_LAUNCH_COLUMNS * 2), LED_OFF);
-              sendNoteOn(MIDI_CHANNEL_SINGLE, patternButton - (CLIP_LAUNCH_COLUMNS * 3), LED_OFF);
+              setLed(MIDI_CHANNEL_SINGLE, patternButton, LED_OFF);
+              setLed(MIDI_CHANNEL_SINGLE, patternButton - CLIP_LAUNCH_COLUMNS, LED_OFF);
+              setLed(MIDI_CHANNEL_SINGLE, patternButton - (CLIP_LAUNCH_COLUMNS * 2), LED_OFF);
+              setLed(MIDI_CHANNEL_SINGLE, patternButton - (CLIP_LAUNCH_COLUMNS * 3), LED_OFF);
             }
           }
         }
         for (int m = 0; m < this.mods.length; ++m) {
           if (this.mods[m] != null) {
-            this.mods[m].removeListener(this);
             this.mods[m] = null;
             if (isSuperMod() && clearButtons) {
               sendSMIndicator(null, m);
@@ -432,6 +461,9 @@ public class APCminiMk2 extends LXMidiSurface implements LXMidiSurface.Bidirecti
           }
         }
         this.device.controlSurfaceSemaphore.decrement();
+        if (isSMregistered) {
+          SuperMod.current.releaseRemoteMods(APCminiMk2.this);
+        }
       }
       this.pattern = null;
       this.effect = null;
@@ -464,6 +496,12 @@ public class APCminiMk2 extends LXMidiSurface implements LXMidiSurface.Bidirecti
     // Currently just a placeholder, we will always be supermod.
     addSetting("isSuperMod", this.isSuperMod);
 
+    Arrays.fill(this.ledBehavior, LED_UNKNOWN);
+    Arrays.fill(this.ledColor, LED_UNKNOWN);
+    Arrays.fill(this.sentBehavior, LED_UNKNOWN);
+    Arrays.fill(this.sentColor, LED_UNKNOWN);
+    lx.engine.addLoopTask(this.loopTask);
+
     registerSM();
   }
 
@@ -481,17 +519,128 @@ public class APCminiMk2 extends LXMidiSurface implements LXMidiSurface.Bidirecti
       if (this.isRegistered) {
         unregister();
       }
+      // No more frames are guaranteed before dispose, push the cleared grid now
+      flushLeds();
     }
   }
 
   @Override
   protected void onReconnect() {
     if (this.enabled.isOn()) {
-      initialize();
+      // The shadow state is what the surface should be showing, replay it
+      // instead of rebuilding the grid from the project.
+      invalidateLeds();
+      flushLeds();
+    }
+  }
+
+  /*
+   * MIDI output is written from a separate thread, in the order it was queued
+   */
+
+  private static final int OUTPUT_QUEUE_SIZE = 256;
+  private static final int OUTPUT_SYSEX_SIZE = 64;
+
+  private final MidiOutputQueue outputQueue = new MidiOutputQueue("APCminiMk2 MIDI Output", new MidiOutputQueue.Sink() {
+    @Override
+    public void noteOn(int channel, int note, int velocity) {
+      sendNoteOn(channel, note, velocity);
+    }
+
+    @Override
+    public void controlChange(int channel, int cc, int value) {
+      sendControlChange(channel, cc, value);
+    }
+
+    @Override
+    public void sysex(byte[] sysex) {
+      sendSysex(sysex);
+    }
+  }, OUTPUT_QUEUE_SIZE, OUTPUT_SYSEX_SIZE);
+
+  private void checkOutputDropped() {
+    final int dropped = this.outputQueue.takeDropped();
+    if (dropped > 0) {
+      LOG.error("APCminiMk2 output queue full, dropped " + dropped + " messages");
+    }
+  }
+
+  /*
+   * LED shadow state
+   */
+
+  private static final int LED_NUM_NOTES = 128;
+  private static final int LED_UNKNOWN = -1;
+
+  // Intended state of each LED, written by setLed()
+  private final int[] ledBehavior = new int[LED_NUM_NOTES];
+  private final int[] ledColor = new int[LED_NUM_NOTES];
+
+  // State of each LED as last sent to the hardware
+  private final int[] sentBehavior = new int[LED_NUM_NOTES];
+  private final int[] sentColor = new int[LED_NUM_NOTES];
+
+  // Notes where the intended state differs from the hardware
+  private final BitSet ledDirty = new BitSet(LED_NUM_NOTES);
+
+  private final LXLoopTask loopTask = (deltaMs) -> {
+    drainInput();
+    flushLeds();
+  };
+
+  /**
+   * Set the intended state of an LED. Nothing is sent until the next
+   * flush, and only if the LED differs from what the hardware is showing.
+   */
+  private void setLed(int behavior, int note, int color) {
+    this.ledBehavior[note] = behavior;
+    this.ledColor[note] = color;
+    if (this.sentBehavior[note] != behavior || this.sentColor[note] != color) {
+      this.ledDirty.set(note);
+    } else {
+      this.ledDirty.clear(note);
+    }
+  }
+
+  /**
+   * Send dirty LEDs, mode and channel indicators before the clip grid
+   */
+  private void flushLeds() {
+    if (flushLeds(CLIP_LAUNCH_MAX + 1, LED_NUM_NOTES)) {
+      flushLeds(CLIP_LAUNCH, CLIP_LAUNCH_MAX + 1);
+    }
+  }
+
+  private boolean flushLeds(int from, int to) {
+    for (int note = this.ledDirty.nextSetBit(from); note >= 0 && note < to; note = this.ledDirty.nextSetBit(note + 1)) {
+      if (!this.outputQueue.noteOn(this.ledBehavior[note], note, this.ledColor[note])) {
+        // Output queue is full, leave the rest dirty for the next frame
+        checkOutputDropped();
+        return false;
+      }
+      this.sentBehavior[note] = this.ledBehavior[note];
+      this.sentColor[note] = this.ledColor[note];
+      this.ledDirty.clear(note);
+    }
+    return true;
+  }
+
+  /**
+   * Forget what the hardware is showing, for when it may have been reset.
+   * Every LED with a known intended state will be resent on the next flush.
+   */
+  private void invalidateLeds() {
+    Arrays.fill(this.sentBehavior, LED_UNKNOWN);
+    Arrays.fill(this.sentColor, LED_UNKNOWN);
+    for (int note = 0; note < LED_NUM_NOTES; ++note) {
+      if (this.ledBehavior[note] != LED_UNKNOWN) {
+        this.ledDirty.set(note);
+      }
     }
   }
 
   private void initialize() {
+    invalidateLeds();
     sendGrid();
   }
 
@@ -505,18 +654,27 @@ public class APCminiMk2 extends LXMidiSurface implements LXMidiSurface.Bidirecti
   }
 
   private void sendSMTemplates() {
-    int behavior, note, color;
+    int behavior, note;
     for (int index = 0; index < SUPERMOD_TEMPLATE_COLUMNS; ++index) {
-      boolean global = SuperMod.current.isTemplateGlobal(index);
+      final int templateIndex = getSMTemplateIndex(index);
       for (int y = 0; y < SUPERMOD_TEMPLATE_ROWS; ++y) {
         behavior = LED_SUPERMOD_TEMPLATE_INACTIVE_BEHAVIOR;
         note = CLIP_LAUNCH + CLIP_LAUNCH_COLUMNS * (CLIP_LAUNCH_ROWS - 1 - y) + index;
-        color = global ? LED_SUPERMOD_TEMPLATE_INACTIVE_COLOR_GLOBAL : (y > 1 ? LED_OFF : LED_SUPERMOD_TEMPLATE_INACTIVE_COLOR_LOCAL);
-        sendNoteOn(behavior, note, color);
+        setLed(behavior, note, getSMTemplateColor(templateIndex, y));
       }
     }
   }
 
+  private int getSMTemplateColor(int templateIndex, int templateVariation) {
+    if (SuperMod.current.isTemplateGlobal(templateIndex)) {
+      return LED_SUPERMOD_TEMPLATE_INACTIVE_COLOR_GLOBAL;
+    }
+    if (templateVariation > 1 || !SuperMod.current.isTemplateAvailable(templateIndex)) {
+      return LED_OFF;
+    }
+    return LED_SUPERMOD_TEMPLATE_INACTIVE_COLOR_LOCAL;
+  }
+
   private void clearGrid() {
     for (int i = 0; i < NUM_CHANNELS; ++i) {
       sendChannelPatterns(i, null, true);
@@ -562,11 +720,11 @@ public class APCminiMk2 extends LXMidiSurface implements LXMidiSurface.Bidirecti
           color = LED_PATTERN_INACTIVE_COLOR;
         }
 
-        sendNoteOn(behavior, note, color);
+        setLed(behavior, note, color);
       }
     } else {
       for (int y = 0; y < CLIP_LAUNCH_ROWS; ++y) {
-        sendNoteOn(
+        setLed(
           MIDI_CHANNEL_MULTI_100_PERCENT,
           CLIP_LAUNCH + CLIP_LAUNCH_COLUMNS * (CLIP_LAUNCH_ROWS - 1 - y) + index,
           LED_OFF
@@ -595,7 +753,7 @@ public class APCminiMk2 extends LXMidiSurface implements LXMidiSurface.Bidirecti
 
   private void clearChannelButtonRow() {
     for (int i = 0; i < NUM_CHANNELS; ++i) {
-      sendNoteOn(MIDI_CHANNEL_SINGLE, CHANNEL_BUTTON + i, LED_OFF);
+      setLed(MIDI_CHANNEL_SINGLE, CHANNEL_BUTTON + i, LED_OFF);
     }
   }
 
@@ -618,30 +776,30 @@ public class APCminiMk2 extends LXMidiSurface implements LXMidiSurface.Bidirecti
         color = this.channelButtonMode == ChannelButtonMode.ARM ? LED_ON : LED_OFF;
         break;
       }
-      sendNoteOn(MIDI_CHANNEL_SINGLE, CHANNEL_BUTTON + index, color);
+      setLed(MIDI_CHANNEL_SINGLE, CHANNEL_BUTTON + index, color);
     } else {
       // Not shift
       if (channel != null) {
         switch (this.channelButtonMode) {
           case FOCUS:
-            sendNoteOn(MIDI_CHANNEL_SINGLE, CHANNEL_BUTTON + index, index == this.lx.engine.mixer.focusedChannel.getValuei() ? LED_ON : LED_OFF);
+            setLed(MIDI_CHANNEL_SINGLE, CHANNEL_BUTTON + index, index == this.lx.engine.mixer.focusedChannel.getValuei() ? LED_ON : LED_OFF);
             break;
           case ENABLED:
-            sendNoteOn(MIDI_CHANNEL_SINGLE, CHANNEL_BUTTON + index, channel.enabled.isOn() ? LED_ON : LED_OFF);
+            setLed(MIDI_CHANNEL_SINGLE, CHANNEL_BUTTON + index, channel.enabled.isOn() ? LED_ON : LED_OFF);
             break;
           case CUE:
-            sendNoteOn(MIDI_CHANNEL_SINGLE, CHANNEL_BUTTON + index, channel.cueActive.isOn() ? LED_ON : LED_OFF);
+            setLed(MIDI_CHANNEL_SINGLE, CHANNEL_BUTTON + index, channel.cueActive.isOn() ? LED_ON : LED_OFF);
             break;
           case ARM:
-            sendNoteOn(MIDI_CHANNEL_SINGLE, CHANNEL_BUTTON + index, channel.arm.isOn() ? LED_ON : LED_OFF);
+            setLed(MIDI_CHANNEL_SINGLE, CHANNEL_BUTTON + index, channel.arm.isOn() ? LED_ON : LED_OFF);
             break;
           case CROSSFADEGROUP:
             // Button press toggles through the 3 modes. Button does not stay lit.
-            sendNoteOn(MIDI_CHANNEL_SINGLE, CHANNEL_BUTTON + index, LED_OFF);
+            setLed(MIDI_CHANNEL_SINGLE, CHANNEL_BUTTON + index, LED_OFF);
             break;
         }
       } else {
-        sendNoteOn(MIDI_CHANNEL_SINGLE, CHANNEL_BUTTON + index, LED_OFF);
+        setLed(MIDI_CHANNEL_SINGLE, CHANNEL_BUTTON + index, LED_OFF);
       }
     }
   }
@@ -702,6 +860,8 @@ public class APCminiMk2 extends LXMidiSurface implements LXMidiSurface.Bidirecti
 
   private void unregisterSM() {
     this.isSMregistered = false;
+    this.smHeldTemplate = SM_INVALID;
+    SuperMod.current.releaseRemoteMods(this);
     SuperMod.current.removeListener(this.superModListener);
   }
 
@@ -709,24 +869,67 @@ public class APCminiMk2 extends LXMidiSurface implements LXMidiSurface.Bidirecti
   static private final int SM_TEMPLATE_MIN = 32;
   static private final int SM_TEMPLATE_MAX = 64;
 
+  /**
+   * Number of template banks, each one a column per template.
+   * Bank 1 holds the tempo templates, later banks hold SM_9 and up.
+   */
+  static private final int SM_TEMPLATE_BANKS = SuperMod.MAX_TEMPLATES / SUPERMOD_TEMPLATE_COLUMNS;
+
+  /**
+   * Template bank shown on the grid, changed with Shift+Left/Right
+   */
+  private int smTemplateBank = 0;
+
+  private int getSMTemplateIndex(int column) {
+    return this.smTemplateBank * SUPERMOD_TEMPLATE_COLUMNS + column;
+  }
+
+  private void setSMTemplateBank(int bank) {
+    bank = LXUtils.constrain(bank, 0, SM_TEMPLATE_BANKS - 1);
+    if (this.smTemplateBank != bank) {
+      this.smTemplateBank = bank;
+      this.smHeldTemplate = SM_INVALID;
+      sendSMTemplates();
+    }
+  }
+
+  /**
+   * Template button currently held down, used for the apply-to-all gesture
+   */
+  private int smHeldTemplate = SM_INVALID;
+
   private boolean onSMGridButton(int pitch, boolean on) {
     if (pitch == SHIFT) {
-      SuperMod.current.setModState(this, on);
+      if (this.smHeldTemplate != SM_INVALID) {
+        // Hold a template, press Shift: apply template to all visible mods
+        if (on) {
+          this.deviceListener.onSMApplyTemplate();
+        }
+      } else {
+        SuperMod.current.setModState(this, on);
+      }
     } else if (SM_TEMPLATE_MIN <= pitch && pitch <= SM_TEMPLATE_MAX) {
       // Button is within template zone (top 4 rows, any column)
       SuperMod.current.setModState(this, on);
       final int templatePitch = pitch - SM_TEMPLATE_MIN;
-      final int templateIndex = templatePitch % CLIP_LAUNCH_COLUMNS;
-      final int row = templatePitch - templateIndex;
+      final int column = templatePitch % CLIP_LAUNCH_COLUMNS;
+      final int row = templatePitch - column;
+      final int templateIndex = getSMTemplateIndex(column);
       final int templateVariation = (SUPERMOD_TEMPLATE_ROWS - (row / CLIP_LAUNCH_COLUMNS)) - 1;
+      if (!SuperMod.current.isTemplateAvailable(templateIndex)) {
+        // Template beyond the tempos without a global modulator
+        return true;
+      }
       if (on) {
+        this.smHeldTemplate = pitch;
         SuperMod.current.setTemplate(this, templateIndex, templateVariation);
         // TODO: Light buttons only in response to SuperMod property change (current template/variation)
-        sendNoteOn(LED_SUPERMOD_TEMPLATE_ACTIVE_BEHAVIOR, pitch, LED_SUPERMOD_TEMPLATE_ACTIVE_COLOR);
+        setLed(LED_SUPERMOD_TEMPLATE_ACTIVE_BEHAVIOR, pitch, LED_SUPERMOD_TEMPLATE_ACTIVE_COLOR);
       } else {
-        boolean global = SuperMod.current.isTemplateGlobal(templateIndex);
-        sendNoteOn(LED_SUPERMOD_TEMPLATE_INACTIVE_BEHAVIOR, pitch,
-          global ? LED_SUPERMOD_TEMPLATE_INACTIVE_COLOR_GLOBAL : LED_SUPERMOD_TEMPLATE_INACTIVE_COLOR_LOCAL);
+        if (this.smHeldTemplate == pitch) {
+          this.smHeldTemplate = SM_INVALID;
+        }
+        setLed(LED_SUPERMOD_TEMPLATE_INACTIVE_BEHAVIOR, pitch, getSMTemplateColor(templateIndex, templateVariation));
       }
       return true;
     } else {
@@ -761,8 +964,7 @@ public class APCminiMk2 extends LXMidiSurface implements LXMidiSurface.Bidirecti
     return SM_INVALID;
   }
 
-  private void noteReceived(MidiNote note, boolean on) {
-    int pitch = note.getPitch();
+  private void noteReceived(int midiChannel, int pitch, boolean on) {
 
     if (isSuperMod()) {
       // Tidy edit, expecting grid behavior will evolve.
@@ -794,7 +996,7 @@ public class APCminiMk2 extends LXMidiSurface implements LXMidiSurface.Bidirecti
         case SELECT_DOWN:
         case SELECT_LEFT:
         case SELECT_RIGHT:
-          sendNoteOn(note.getChannel(), pitch, on ? LED_ON : LED_OFF);
+          setLed(midiChannel, pitch, on ? LED_ON : LED_OFF);
           break;
       }
 
@@ -803,7 +1005,17 @@ public class APCminiMk2 extends LXMidiSurface implements LXMidiSurface.Bidirecti
         LXBus bus;
         switch (pitch) {
           case SELECT_LEFT:
+            // SuperMod: previous template bank
+            if (isSuperMod()) {
+              setSMTemplateBank(this.smTemplateBank - 1);
+            }
+            return;
           case SELECT_RIGHT:
+            // SuperMod: next template bank
+            if (isSuperMod()) {
+              setSMTemplateBank(this.smTemplateBank + 1);
+            }
+            return;
           case SELECT_UP:
           case SELECT_DOWN:
             return;
@@ -823,8 +1035,30 @@ public class APCminiMk2 extends LXMidiSurface implements LXMidiSurface.Bidirecti
             // Not an available mode currently due to 4 button limitation
             return;
           case CLIP_STOP:
+            // SuperMod: clear focused device
+            if (isSuperMod()) {
+              SuperMod.current.clearDevice(this, this.deviceListener.device);
+            }
+            return;
           case SOLO:
+            // SuperMod: clear focused channel
+            if (isSuperMod()) {
+              SuperMod.current.clearChannel(this, this.lx.engine.mixer.getFocusedChannel());
+            }
+            return;
           case MUTE:
+            // SuperMod: clear all, on a second press
+            if (isSuperMod()) {
+              final long now = System.currentTimeMillis();
+              if (now - this.clearAllRequested <= CLEAR_ALL_CONFIRM_MS) {
+                this.clearAllRequested = 0;
+                SuperMod.current.clearAll(this);
+              } else {
+                this.clearAllRequested = now;
+                LOG.log("APCminiMk2 press Shift+Mute again to clear all SuperMod modulations");
+              }
+            }
+            return;
           case REC_ARM:
           case SELECT:
           case DRUM:
@@ -841,7 +1075,7 @@ public class APCminiMk2 extends LXMidiSurface implements LXMidiSurface.Bidirecti
 
       // Light-up momentary buttons
       if (pitch >= SCENE_LAUNCH && pitch <= SCENE_LAUNCH_MAX) {
-        sendNoteOn(note.getChannel(), pitch, on ? LED_ON : LED_OFF);
+        setLed(midiChannel, pitch, on ? LED_ON : LED_OFF);
       }
 
       // Button actions without Shift
@@ -899,14 +1133,43 @@ public class APCminiMk2 extends LXMidiSurface implements LXMidiSurface.Bidirecti
     }
   }
 
+  /*
+   * MIDI input is queued as it arrives and handled at the start of each engine frame
+   */
+
+  private static final int INPUT_QUEUE_SIZE = 256;
+
+  private final MidiEventQueue inputQueue = new MidiEventQueue(INPUT_QUEUE_SIZE);
+
+  private final MidiEventQueue.Handler inputHandler = this::midiEvent;
+
   @Override
   public void noteOnReceived(MidiNoteOn note) {
-    noteReceived(note, true);
+    this.inputQueue.offer(MidiEventQueue.NOTE_ON, note.getChannel(), note.getPitch(), note.getVelocity());
   }
 
   @Override
   public void noteOffReceived(MidiNote note) {
-    noteReceived(note, false);
+    this.inputQueue.offer(MidiEventQueue.NOTE_OFF, note.getChannel(), note.getPitch(), 0);
+  }
+
+  private void midiEvent(int type, int channel, int data1, int data2) {
+    switch (type) {
+      case MidiEventQueue.NOTE_ON:
+        noteReceived(channel, data1, true);
+        break;
+      case MidiEventQueue.NOTE_OFF:
+        noteReceived(channel, data1, false);
+        break;
+    }
+  }
+
+  private void drainInput() {
+    this.inputQueue.drain(this.inputHandler);
+    final int dropped = this.inputQueue.takeDropped();
+    if (dropped > 0) {
+      LOG.error("APCminiMk2 input queue full, dropped " + dropped + " events");
+    }
   }
 
   @Override
@@ -918,6 +1181,9 @@ public class APCminiMk2 extends LXMidiSurface implements LXMidiSurface.Bidirecti
     if (this.isSMregistered) {
       unregisterSM();
     }
+    flushLeds();
+    this.lx.engine.removeLoopTask(this.loopTask);
+    this.outputQueue.dispose();
     super.dispose();
   }
 
@@ -0,0 +1,124 @@
+/**
+ * Copyright 2024- Justin Belcher
+ *
+ * @author Justin K. Belcher <justin@jkb.studio>
+ */
+
+package studio.jkb.supermod;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import heronarts.lx.LX;
+
+/**
+ * Remembers a fingerprint of the config last written to each MIDI device,
+ * keyed by port name, so a push can be skipped when the device already holds
+ * the same config. Stored as a properties file in the SuperMod media folder.
+ *
+ * A match is only a hint. The device may have been reconfigured outside LX,
+ * for example by the manufacturer's utility, which this can't detect.
+ *
+ * The file is read once and shared by every instance that names it. Changes
+ * are written from a virtual thread, never from the caller's thread.
+ */
+public class ConfigFingerprints {
+
+  public static final long NONE = -1;
+
+  private static final String FOLDER = "SuperMod";
+
+  // Fingerprints by file, shared by all instances and guarded by the map
+  private static final Map<File, Properties> loaded = new HashMap<File, Properties>();
+
+  // Serializes file writes. Not the Properties monitor, callers must not wait on a write.
+  private static final Object writeLock = new Object();
+
+  private final File file;
+  private final Properties properties;
+
+  private volatile boolean savePending = false;
+
+  public ConfigFingerprints(LX lx, String fileName) {
+    this.file = new File(new File(lx.getMediaPath(), FOLDER), fileName);
+    synchronized (loaded) {
+      this.properties = loaded.computeIfAbsent(this.file, ConfigFingerprints::load);
+    }
+  }
+
+  /**
+   * Fingerprint of the config last written to a port, or NONE if unknown
+   */
+  public long get(String port) {
+    final String value = this.properties.getProperty(port);
+    if (value != null) {
+      try {
+        return Long.parseLong(value);
+      } catch (NumberFormatException nfx) {
+        LOG.warning("Ignoring invalid config fingerprint for " + port + ": " + value);
+      }
+    }
+    return NONE;
+  }
+
+  public void put(String port, long fingerprint) {
+    final String value = Long.toString(fingerprint);
+    if (!value.equals(this.properties.setProperty(port, value))) {
+      requestSave();
+    }
+  }
+
+  /**
+   * Forget the config of a port, for when its state is unknown
+   */
+  public void remove(String port) {
+    if (this.properties.remove(port) != null) {
+      requestSave();
+    }
+  }
+
+  private static Properties load(File file) {
+    final Properties properties = new Properties();
+    if (file.exists()) {
+      try (InputStream is = new FileInputStream(file)) {
+        properties.load(is);
+      } catch (IOException iox) {
+        LOG.error(iox, "Failed to read config fingerprints from " + file);
+      }
+    }
+    return properties;
+  }
+
+  /**
+   * Write the file from a virtual thread. Changes made before the write
+   * starts are included, so a burst of changes is written once.
+   */
+  private void requestSave() {
+    if (!this.savePending) {
+      this.savePending = true;
+      Thread.ofVirtual().name("SuperMod Config Fingerprints").start(this::save);
+    }
+  }
+
+  private void save() {
+    this.savePending = false;
+    // Properties is synchronized, the copy is a consistent snapshot
+    final Properties snapshot = (Properties) this.properties.clone();
+    synchronized (writeLock) {
+      this.file.getParentFile().mkdirs();
+      try (OutputStream os = new FileOutputStream(this.file)) {
+        snapshot.store(os, "Config last written to each MIDI device");
+      } catch (IOException iox) {
+        LOG.error(iox, "Failed to write config fingerprints to " + this.file);
+      }
+    }
+  }
+
+}
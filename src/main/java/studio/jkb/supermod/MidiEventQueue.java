@@ -0,0 +1,90 @@
+/**
+ * Copyright 2024- Justin Belcher
+ *
+ * @author Justin K. Belcher <justin@jkb.studio>
+ */
+
+package studio.jkb.supermod;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Single-producer, single-consumer ring of decoded MIDI input events.
+ *
+ * A surface offers events as they arrive and drains them once per engine
+ * frame, so that all of its state changes happen in one place on the engine
+ * thread. Events are packed into ints, nothing is allocated after construction.
+ */
+public class MidiEventQueue {
+
+  public static final int NOTE_OFF = 0;
+  public static final int NOTE_ON = 1;
+  public static final int CONTROL_CHANGE = 2;
+
+  public interface Handler {
+    public void midiEvent(int type, int channel, int data1, int data2);
+  }
+
+  private final int[] events;
+  private final int mask;
+
+  // Next slot to read, only written by the consumer
+  private volatile int head = 0;
+
+  // Next slot to write, only written by the producer
+  private volatile int tail = 0;
+
+  // Counted by the producer, taken by the consumer
+  private final AtomicInteger dropped = new AtomicInteger();
+
+  /**
+   * @param capacity Maximum number of pending events, rounded up to a power of two
+   */
+  public MidiEventQueue(int capacity) {
+    final int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+    this.events = new int[size];
+    this.mask = size - 1;
+  }
+
+  /**
+   * Add an event. Called by the producer only.
+   *
+   * @return false if the queue was full and the event was dropped
+   */
+  public boolean offer(int type, int channel, int data1, int data2) {
+    final int tail = this.tail;
+    if (tail - this.head > this.mask) {
+      this.dropped.incrementAndGet();
+      return false;
+    }
+    this.events[tail & this.mask] =
+      (type << 18) | ((channel & 0xf) << 14) | ((data1 & 0x7f) << 7) | (data2 & 0x7f);
+    this.tail = tail + 1;
+    return true;
+  }
+
+  /**
+   * Pass every pending event to the handler, in order of arrival.
+   * Called by the consumer only.
+   */
+  public void drain(Handler handler) {
+    int head = this.head;
+    final int tail = this.tail;
+    while (head != tail) {
+      final int event = this.events[head & this.mask];
+      ++head;
+      // Publish before handling, the handler may take a while
+      this.head = head;
+      handler.midiEvent(event >>> 18, (event >>> 14) & 0xf, (event >>> 7) & 0x7f, event & 0x7f);
+    }
+  }
+
+  /**
+   * Number of events dropped because the queue was full.
+   * Resets the count.
+   */
+  public int takeDropped() {
+    return this.dropped.getAndSet(0);
+  }
+
+}
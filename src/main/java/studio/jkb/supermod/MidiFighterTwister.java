@@ -18,13 +18,15 @@
 
 package studio.jkb.supermod;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
 
 import heronarts.lx.LX;
 import heronarts.lx.LXDeviceComponent;
+import heronarts.lx.LXLoopTask;
 import heronarts.lx.command.LXCommand;
 import heronarts.lx.midi.LXMidiEngine;
 import heronarts.lx.midi.LXMidiInput;
@@ -36,6 +38,7 @@ import heronarts.lx.midi.surface.FocusedDevice;
 import heronarts.lx.midi.surface.LXMidiSurface;
 import heronarts.lx.modulation.LXCompoundModulation;
 import heronarts.lx.parameter.BooleanParameter;
+import heronarts.lx.parameter.BoundedParameter;
 import heronarts.lx.parameter.DiscreteParameter;
 import heronarts.lx.parameter.LXListenableNormalizedParameter;
 import heronarts.lx.parameter.LXParameter;
@@ -74,6 +77,13 @@ public class MidiFighterTwister extends LXMidiSurface implements LXMidiSurface.B
   public static final int KNOB_INCREMENT_VERYFAST = 67;
   public static final int KNOB_TICKS_PER_DISCRETE_INCREMENT = 8;
 
+  // Encoder acceleration for continuous parameters
+  public static final double KNOB_VELOCITY_FAST = 2;
+  public static final double KNOB_VELOCITY_VERYFAST = 4;
+  // Ticks closer together than this, on average over a frame, are sped up to KNOB_ACCELERATION_MAX
+  public static final double KNOB_ACCELERATION_WINDOW_MS = 40;
+  public static final double KNOB_ACCELERATION_MAX = 4;
+
   // MIDI ControlChanges on System channel
   public static final int BANK1 = 0;
   public static final int BANK2 = 1;
@@ -205,6 +215,10 @@ public class MidiFighterTwister extends LXMidiSurface implements LXMidiSurface.B
     new EnumParameter<KnobClickMode>("Knob Click", KnobClickMode.RESET)
     .setDescription("How to edit parameters when a knob is pressed");
 
+  public final BooleanParameter clickCyclesModulation =
+    new BooleanParameter("Click Cycles Mod", false)
+    .setDescription("In SuperMod, pressing a knob chooses which of its target's modulations it adjusts, instead of the Knob Click action");
+
   public final EnumParameter<FocusMode> focusMode =
     new EnumParameter<FocusMode>("Focus Buttons", FocusMode.DEVICE)
     .setDescription("How to change focus on bottom side button press");
@@ -221,6 +235,10 @@ public class MidiFighterTwister extends LXMidiSurface implements LXMidiSurface.B
     new BooleanParameter("SuperMod", true)
     .setDescription("Indicates surface compatibility. Parameter doesn't change anything.");
 
+  public final BoundedParameter outputRate =
+    new BoundedParameter("Output Rate", 2, 0, 20)
+    .setDescription("Maximum MIDI messages per millisecond sent to the MFT, 0 for no limit. Lower this if LEDs get stuck.");
+
   // SYSEX Definitions
 
   // DJTT MIDI Constants
@@ -257,6 +275,27 @@ public class MidiFighterTwister extends LXMidiSurface implements LXMidiSurface.B
   public static final byte CFG_GLOBAL_SSACTION_BANK4 = (byte)0x0b;
   public static final byte CFG_GLOBAL_SSACTION_CYCLE_BANK = (byte)0x0c;
 
+  // DJTT Encoder Config Addresses
+  public static final int CFG_ENC_ADDR_HAS_DETENT = 10;
+  public static final int CFG_ENC_ADDR_MOVEMENT = 11;
+  public static final int CFG_ENC_ADDR_SWITCH_ACTION_TYPE = 12;
+  public static final int CFG_ENC_ADDR_SWITCH_MIDI_CHANNEL = 13;
+  public static final int CFG_ENC_ADDR_SWITCH_MIDI_NUMBER = 14;
+  public static final int CFG_ENC_ADDR_SWITCH_MIDI_TYPE = 15;
+  public static final int CFG_ENC_ADDR_ENCODER_MIDI_CHANNEL = 16;
+  public static final int CFG_ENC_ADDR_ENCODER_MIDI_NUMBER = 17;
+  public static final int CFG_ENC_ADDR_ENCODER_MIDI_TYPE = 18;
+  public static final int CFG_ENC_ADDR_ACTIVE_COLOR = 19;
+  public static final int CFG_ENC_ADDR_INACTIVE_COLOR = 20;
+  public static final int CFG_ENC_ADDR_DETENT_COLOR = 21;
+  public static final int CFG_ENC_ADDR_INDICATOR_DISPLAY_TYPE = 22;
+  public static final int CFG_ENC_ADDR_IS_SUPER_KNOB = 23;
+  public static final int CFG_ENC_ADDR_ENCODER_SHIFT_MIDI_CHANNEL = 24;
+  public static final int CFG_ENC_ADDR_FIRST = CFG_ENC_ADDR_HAS_DETENT;
+
+  // DJTT Global Config Size, highest address + 1
+  public static final int CFG_GLOBAL_ADDR_NUM = 33;
+
   public static final byte CFG_ENC_CONTROLTYPE_ENCODER = 0x00;
   public static final byte CFG_ENC_CONTROLTYPE_SWITCH = 0x01;
   public static final byte CFG_ENC_CONTROLTYPE_SHIFT = 0x02;
@@ -283,6 +322,139 @@ public class MidiFighterTwister extends LXMidiSurface implements LXMidiSurface.B
   public static final byte CFG_ENC_INDICATORTYPE_BLENDEDBAR = 0x02;
   public static final byte CFG_ENC_INDICATORTYPE_BLENDEDDOT = 0x03;
 
+  // Longest sysex message sent to the MFT (global config)
+  private static final int SYSEX_MAX_LENGTH = CFG_GLOBAL_ADDR_NUM * 2 + 6;
+
+  // Reusable sysex buffers, one per message length. The output queue copies
+  // the message, so a buffer can be refilled once sendSysexQueued() returns.
+  private final byte[][] sysexBuffers = new byte[SYSEX_MAX_LENGTH + 1][];
+
+  private byte[] getSysexBuffer(int length) {
+    byte[] buffer = this.sysexBuffers[length];
+    if (buffer == null) {
+      buffer = new byte[length];
+      this.sysexBuffers[length] = buffer;
+    }
+    return buffer;
+  }
+
+  /*
+   * MIDI output is written from a separate thread, in the order it was queued
+   */
+
+  private static final int OUTPUT_QUEUE_SIZE = 1024;
+  private static final int OUTPUT_SYSEX_SIZE = 8192;
+
+  private final MidiOutputQueue outputQueue = new MidiOutputQueue("MFT MIDI Output", new MidiOutputQueue.Sink() {
+    @Override
+    public void noteOn(int channel, int note, int velocity) {
+      sendNoteOn(channel, note, velocity);
+    }
+
+    @Override
+    public void controlChange(int channel, int cc, int value) {
+      sendControlChange(channel, cc, value);
+    }
+
+    @Override
+    public void sysex(byte[] sysex) {
+      sendSysex(sysex);
+    }
+  }, OUTPUT_QUEUE_SIZE, OUTPUT_SYSEX_SIZE);
+
+  private void checkOutputDropped() {
+    final int dropped = this.outputQueue.takeDropped();
+    if (dropped > 0) {
+      LXMidiEngine.error("MFT output queue full, dropped " + dropped + " messages");
+    }
+  }
+
+  /**
+   * Number of messages waiting to be written to the MFT
+   */
+  public int getOutputQueueDepth() {
+    return this.outputQueue.size();
+  }
+
+  private static final double OUTPUT_CHECK_INTERVAL_MS = 5000;
+  private static final int OUTPUT_SATURATED_DEPTH = OUTPUT_QUEUE_SIZE / 2;
+
+  private double outputCheckMs = 0;
+
+  /**
+   * Periodically report if the link to the MFT could not keep up
+   */
+  private void checkOutputSaturation(double deltaMs) {
+    this.outputCheckMs += deltaMs;
+    if (this.outputCheckMs < OUTPUT_CHECK_INTERVAL_MS) {
+      return;
+    }
+    this.outputCheckMs = 0;
+    final int maxDepth = this.outputQueue.takeMaxDepth();
+    final int stalls = this.outputQueue.takeStalls();
+    if (stalls > 0 || maxDepth > OUTPUT_SATURATED_DEPTH) {
+      LXMidiEngine.log("MFT output saturated: queue depth reached " + maxDepth + ", " + stalls + " stalled writes slowed output");
+    }
+  }
+
+  /**
+   * @return false if the output queue was full and the message was dropped
+   */
+  private boolean sendSysexQueued(byte[] sysex) {
+    if (!this.outputQueue.sysex(sysex)) {
+      checkOutputDropped();
+      return false;
+    }
+    return true;
+  }
+
+  /*
+   * The MFT reboots after a config push. CCs sent during the reboot are lost,
+   * so everything queued after a push is held back until the reboot is over.
+   * The reboot also clears the display, which is repainted once it is over.
+   * Nothing waits on the engine thread.
+   */
+
+  // Approximate time for the MFT to reboot after a config push
+  private static final int CONFIG_REBOOT_MS = 300;
+
+  // Runs completion callbacks on the engine thread
+  private final Executor engineExecutor = (task) -> this.lx.engine.addTask(task);
+
+  /**
+   * Hold back everything queued after this point until the device has rebooted.
+   * The returned future completes on the engine thread.
+   */
+  private CompletableFuture<Void> awaitReboot() {
+    return this.outputQueue.fenceFuture(CONFIG_REBOOT_MS).thenRunAsync(() -> { }, this.engineExecutor);
+  }
+
+  // Config last written to each MFT, so that a push it already holds can be skipped
+  private final ConfigFingerprints configFingerprints = new ConfigFingerprints(this.lx, "mft-config.properties");
+
+  private String getPortName() {
+    return (this.output != null) ? this.output.getName() : null;
+  }
+
+  /**
+   * Runs on the engine thread once the device has rebooted after a config push
+   */
+  private void onConfigRebooted() {
+    if (this.initialized) {
+      // The display was cleared, paint it from the current state
+      invalidateCCCache();
+      this.deviceListener.schedulePaint();
+    }
+  }
+
+  private void reportConfigPush(CompletableFuture<Void> push, String description) {
+    push.whenComplete((result, x) -> {
+      if (x != null) {
+        LXMidiEngine.error("MFT " + description + " config push failed: " + x.getMessage());
+      }
+    });
+  }
+
   private class Config {
 
     private static final int PART_SIZE_BYTES = 24;
@@ -291,141 +463,138 @@ public class MidiFighterTwister extends LXMidiSurface implements LXMidiSurface.B
     private boolean versionOK = true;       // TODO: Confirm compatible firmware version (>2016) before sending sysex commands
 
     private boolean initialized = false;
-    private final Map<Byte, Byte> global = new LinkedHashMap<Byte, Byte>();
+    private final byte[] global = new byte[CFG_GLOBAL_ADDR_NUM];
+    private long globalMask = 0;            // Bit per global address that is part of the config
     private final Encoder[] encoders = new Encoder[DEVICE_KNOB_NUM];
 
     private class Encoder {
 
-      private class Setting {
-
-        private final byte address;
-        private byte value;
-        private boolean isModified;
-
-        private Setting(byte address) {
-          this.address = address;
-          this.value = (byte) 0x0;
-          this.isModified = false;
-        }
-
-        private boolean setValue(byte value) {
-          if (this.value != value) {
-            this.value = value;
-            this.isModified = true;
-          }
-          return this.isModified;
-        }
-      }
+      private static final int ALL_SETTINGS = (1 << CFG_COUNT_ENC) - 1;
 
       private final int encoderIndex;
       private final byte sysexTag;
 
-      private boolean isModified = false;
-
-      // Keep list of all settings
-      private final Map<String, Setting> settings =
-        new LinkedHashMap<String, Setting>();
+      // Setting values indexed by address, starting at CFG_ENC_ADDR_FIRST
+      private final byte[] values = new byte[CFG_COUNT_ENC];
 
-      private final Setting has_detent;
+      // Setting values as last written to the device
+      private final byte[] sent = new byte[CFG_COUNT_ENC];
 
-      private Setting addSetting(String name, int address) {
-        Setting setting = new Setting((byte) address);
-        this.settings.put(name, setting);
-        return setting;
-      }
+      // Bit per setting that differs from the last send
+      private int modifiedMask = 0;
 
       private Encoder(int encoderIndex) {
         this.encoderIndex = encoderIndex;
         this.sysexTag = (byte)(encoderIndex+1);
+      }
 
-        this.has_detent = addSetting("has_detent", 10);
-        addSetting("movement", 11);
-        addSetting("switch_action_type", 12);
-        addSetting("switch_midi_channel", 13);
-        addSetting("switch_midi_number", 14);
-        addSetting("switch_midi_type", 15);
-        addSetting("encoder_midi_channel", 16);
-        addSetting("encoder_midi_number", 17);
-        addSetting("encoder_midi_type", 18);
-        addSetting("active_color", 19);
-        addSetting("inactive_color", 20);
-        addSetting("detent_color", 21);
-        addSetting("indicator_display_type", 22);
-        addSetting("is_super_knob", 23);
-        addSetting("encoder_shift_midi_channel", 24);
+      private boolean isModified() {
+        return this.modifiedMask != 0;
+      }
+
+      private boolean hasDetent() {
+        return get(CFG_ENC_ADDR_HAS_DETENT) == CFG_TRUE;
       }
 
       private void setDetent(boolean value) {
-        set("has_detent", value ? CFG_TRUE : CFG_FALSE);
+        set(CFG_ENC_ADDR_HAS_DETENT, value ? CFG_TRUE : CFG_FALSE);
+      }
+
+      private byte get(int address) {
+        return this.values[address - CFG_ENC_ADDR_FIRST];
       }
 
       // set method is for internal use
-      private void set(String setting, byte value) {
-        this.isModified = this.settings.get(setting).setValue(value) || this.isModified;
+      private void set(int address, byte value) {
+        final int setting = address - CFG_ENC_ADDR_FIRST;
+        if (this.values[setting] != value) {
+          this.values[setting] = value;
+          // A setting changed back to what the device holds no longer needs a send
+          if (value != this.sent[setting]) {
+            this.modifiedMask |= 1 << setting;
+          } else {
+            this.modifiedMask &= ~(1 << setting);
+          }
+        }
       }
 
-      private void send(boolean forceAll) {
-        if (!this.isModified && !forceAll) {
-          return;
+      /**
+       * The device holds the current values
+       */
+      private void markSent() {
+        System.arraycopy(this.values, 0, this.sent, 0, this.values.length);
+        this.modifiedMask = 0;
+      }
+
+      /**
+       * @return false if any part could not be queued
+       */
+      private boolean send(boolean forceAll) {
+        if (!isModified() && !forceAll) {
+          return true;
         }
 
-        ArrayList<Byte> configData = new ArrayList<Byte>();
-        for (Setting setting : this.settings.values()) {
-          if (setting.isModified || forceAll) {
-            configData.add(setting.address);
-            configData.add(setting.value);
-          }
+        final int mask = forceAll ? ALL_SETTINGS : this.modifiedMask;
+
+        // Use MFT sysex Bulk Transfer protocol
+
+        // Total number of bytes to transfer, an address and a value per setting
+        int bytesRemaining = Integer.bitCount(mask) * 2;
+
+        // Total number of parts in transfer - round up
+        int total = (bytesRemaining + PART_SIZE_BYTES - 1) / PART_SIZE_BYTES;
+        int setting = 0;
+
+        // Queue every part or none, a partial transfer would leave the encoder half-configured
+        if (!outputQueue.hasRoom(total, bytesRemaining + total * 11)) {
+          // Keep modified, next push will retry
+          return false;
         }
 
-        if (!configData.isEmpty()) {
-          // Use MFT sysex Bulk Transfer protocol
-
-          // Total number of bytes to transfer
-          int bytesRemaining = configData.size();
-
-          // Total number of parts in transfer - round up
-          int total = (bytesRemaining + PART_SIZE_BYTES - 1) / PART_SIZE_BYTES;
-          int iConfig = 0;
-
-          for (int part=1; part<=total; part++) {
-            // Size, in bytes, of current part
-            int size = bytesRemaining > PART_SIZE_BYTES ? PART_SIZE_BYTES : bytesRemaining;
-            bytesRemaining -= PART_SIZE_BYTES;
-
-            byte[] payload = new byte[size+11];
-            payload[0] = (byte)0xf0;                    // Start sysex
-            payload[1] = MIDI_MFR_ID_0;
-            payload[2] = MIDI_MFR_ID_1;
-            payload[3] = MIDI_MFR_ID_2;
-            payload[4] = SYSEX_COMMAND_BULK_XFER;       // Command = bulk transfer
-            payload[5] = 0x00;                          // 0x00 = push to MFT, 0x01 = pull from MFT
-            payload[6] = sysexTag;                      // Encoder identifier
-            payload[7] = (byte)part;                    // Part 'part' of 'total'
-            payload[8] = (byte)total;
-            payload[9] = (byte)size;                    // 24 bytes maximum size
-            payload[payload.length-1] = (byte)0xf7;     // End sysex
-
-            // Copy the data into the payload
-            for (int idx=10; idx < size+10; idx++) {
-              payload[idx] = configData.get(iConfig++);
+        for (int part=1; part<=total; part++) {
+          // Size, in bytes, of current part
+          int size = bytesRemaining > PART_SIZE_BYTES ? PART_SIZE_BYTES : bytesRemaining;
+          bytesRemaining -= PART_SIZE_BYTES;
+
+          byte[] payload = getSysexBuffer(size+11);
+          payload[0] = (byte)0xf0;                    // Start sysex
+          payload[1] = MIDI_MFR_ID_0;
+          payload[2] = MIDI_MFR_ID_1;
+          payload[3] = MIDI_MFR_ID_2;
+          payload[4] = SYSEX_COMMAND_BULK_XFER;       // Command = bulk transfer
+          payload[5] = 0x00;                          // 0x00 = push to MFT, 0x01 = pull from MFT
+          payload[6] = sysexTag;                      // Encoder identifier
+          payload[7] = (byte)part;                    // Part 'part' of 'total'
+          payload[8] = (byte)total;
+          payload[9] = (byte)size;                    // 24 bytes maximum size
+          payload[payload.length-1] = (byte)0xf7;     // End sysex
+
+          // Copy address/value pairs into the payload. Part size is even, pairs never split.
+          int idx = 10;
+          while (idx < size+10) {
+            if ((mask & (1 << setting)) != 0) {
+              payload[idx++] = (byte)(CFG_ENC_ADDR_FIRST + setting);
+              payload[idx++] = this.values[setting];
             }
+            ++setting;
+          }
 
-            // LXMidiEngine.log("MFT Encoder sysex(" + this.encoderIndex + "): " + bytesToString(payload));
-            sendSysex(payload);
+          // LXMidiEngine.log("MFT Encoder sysex(" + this.encoderIndex + "): " + bytesToString(payload));
+          if (!sendSysexQueued(payload)) {
+            // Keep modified, next push will retry
+            return false;
           }
         }
 
         // If successfully sent, mark as not modified for next round
-        this.isModified = false;
-        for (Setting setting : this.settings.values()) {
-          setting.isModified = false;
-        }
+        markSent();
+        return true;
       }
 
       @SuppressWarnings("unused")
       private void pull() {
         // Send Pull command for this encoder only
-        byte[] payload = new byte[8];
+        byte[] payload = getSysexBuffer(8);
         payload[0] = (byte)0xf0;                    // Start sysex
         payload[1] = MIDI_MFR_ID_0;
         payload[2] = MIDI_MFR_ID_1;
@@ -436,7 +605,7 @@ public class MidiFighterTwister extends LXMidiSurface implements LXMidiSurface.B
         payload[7] = (byte)0xf7;                    // End sysex
 
         // LXMidiEngine.log("MFT Encoder sysex(" + this.encoderIndex + "): " + bytesToString(payload));
-        sendSysex(payload);
+        sendSysexQueued(payload);
 
         // TODO: Process response
       }
@@ -459,15 +628,81 @@ public class MidiFighterTwister extends LXMidiSurface implements LXMidiSurface.B
       //this.initialized = true;  // Only uncomment after it's working. Don't want to push a blank config!
     }
 
-    private void sendAll() {
+    // Set when a sysex part of the current push could not be queued
+    private boolean pushIncomplete = false;
+
+    /**
+     * Push the complete config. The returned future completes on the
+     * engine thread after the device has rebooted.
+     */
+    private CompletableFuture<Void> sendAll() {
+      if (!this.initialized) {
+        LXMidiEngine.error("Cannot push empty config to MFT device");
+        return CompletableFuture.completedFuture(null);
+      }
+      final String port = getPortName();
+      if (port != null && configFingerprints.get(port) == fingerprint()) {
+        // Device already holds this config, skip the push and the reboot
+        for (Encoder encoder : this.encoders) {
+          encoder.markSent();
+        }
+        return CompletableFuture.completedFuture(null);
+      }
       sendEncoders(true);
       sendGlobal();
+      return pushed();
     }
 
-    private void sendModified() {
+    /**
+     * Push modified encoders, if any. The returned future completes on the
+     * engine thread after the device has rebooted, or immediately if there
+     * was nothing to push.
+     */
+    private CompletableFuture<Void> sendModified() {
       if (sendEncoders(false)) {
         sendGlobal();
+        return pushed();
+      }
+      return CompletableFuture.completedFuture(null);
+    }
+
+    private CompletableFuture<Void> pushed() {
+      // Device config is unknown until the push is written
+      final String port = getPortName();
+      if (port != null) {
+        configFingerprints.remove(port);
+      }
+
+      // Device reboots after a config change, LED state is lost
+      final CompletableFuture<Void> rebooted = awaitReboot().whenComplete((result, x) -> onConfigRebooted());
+      if (this.pushIncomplete) {
+        this.pushIncomplete = false;
+        return rebooted.thenRun(() -> {
+          throw new IllegalStateException("output queue full, config was not fully sent");
+        });
+      }
+      if (port != null) {
+        final long fingerprint = fingerprint();
+        return rebooted.thenRun(() -> configFingerprints.put(port, fingerprint));
+      }
+      return rebooted;
+    }
+
+    /**
+     * Checksum of every setting that is part of a full push
+     */
+    private long fingerprint() {
+      final CRC32 crc = new CRC32();
+      for (Encoder encoder : this.encoders) {
+        crc.update(encoder.values);
+      }
+      for (int address = 0; address < CFG_GLOBAL_ADDR_NUM; ++address) {
+        if ((this.globalMask & (1L << address)) != 0) {
+          crc.update(address);
+          crc.update(this.global[address]);
+        }
       }
+      return crc.getValue();
     }
 
     private boolean sendEncoders(boolean forceAll) {
@@ -480,8 +715,10 @@ public class MidiFighterTwister extends LXMidiSurface implements LXMidiSurface.B
 
       // Encoders
       for (int i = 0; i < this.encoders.length; ++i) {
-        if (this.encoders[i].isModified || forceAll) {
-          this.encoders[i].send(forceAll);
+        if (this.encoders[i].isModified() || forceAll) {
+          if (!this.encoders[i].send(forceAll)) {
+            this.pushIncomplete = true;
+          }
           modified = true;
         }
       }
@@ -495,71 +732,84 @@ public class MidiFighterTwister extends LXMidiSurface implements LXMidiSurface.B
         return;
       }
 
-      byte[] sysex = new byte[this.global.size()*2 + 6];
+      byte[] sysex = getSysexBuffer(Long.bitCount(this.globalMask)*2 + 6);
       sysex[0] = (byte)0xf0;
       sysex[1] = MIDI_MFR_ID_0;
       sysex[2] = MIDI_MFR_ID_1;
       sysex[3] = MIDI_MFR_ID_2;
       sysex[4] = SYSEX_COMMAND_PUSH_CONF;
       int iSys = 5;
-      for (Map.Entry<Byte, Byte> g : this.global.entrySet()) {
-        sysex[iSys++] = g.getKey();
-        sysex[iSys++] = g.getValue();
+      for (int address = 0; address < CFG_GLOBAL_ADDR_NUM; ++address) {
+        if ((this.globalMask & (1L << address)) != 0) {
+          sysex[iSys++] = (byte)address;
+          sysex[iSys++] = this.global[address];
+        }
       }
       sysex[iSys] = (byte)0xf7;
 
       // LXMidiEngine.log("MFT System sysex:      " + bytesToString(sysex));
-      sendSysex(sysex);
+      if (!sendSysexQueued(sysex)) {
+        this.pushIncomplete = true;
+      }
+    }
+
+    private void setGlobal(int address, byte value) {
+      this.global[address] = value;
+      this.globalMask |= 1L << address;
+    }
+
+    private void clearGlobal() {
+      this.globalMask = 0;
     }
 
     private void initializeLXDefaults() {
-      this.global.clear();
-      this.global.put((byte)0, (byte)4);                            // System MIDI channel
-      this.global.put((byte)1, (byte)1);                            // Bank Side Buttons
-      this.global.put((byte)2, CFG_GLOBAL_SSACTION_CCTOGGLE);       // Left Button 1 Function
-      this.global.put((byte)3, CFG_GLOBAL_SSACTION_BANKDOWN);       // Left Button 2 Function
-      this.global.put((byte)4, CFG_GLOBAL_SSACTION_CCTOGGLE);       // Left Button 3 Function
-      this.global.put((byte)5, CFG_GLOBAL_SSACTION_CCTOGGLE);       // Right Button 1 Function
-      this.global.put((byte)6, CFG_GLOBAL_SSACTION_BANKUP);         // Right Button 2 Function
-      this.global.put((byte)7, CFG_GLOBAL_SSACTION_CCTOGGLE);       // Right Button 3 Function
-      this.global.put((byte)8, (byte)63);                           // Super Knob Start Point
-      this.global.put((byte)9, (byte)127);                          // Super Knob End Point
-      this.global.put((byte)10, (byte)0);                           // 0a
-      this.global.put((byte)11, (byte)0);                           // 0b CFG_ENC_MOVEMENTTYPE_DIRECT_HIGHRESOLUTION?
-      this.global.put((byte)12, (byte)0);                           // 0c CFG_ENC_SWACTION_CCHOLD?
-      this.global.put((byte)13, (byte)2);                           // 0d
-      this.global.put((byte)14, (byte)0);                           // 0e
-      this.global.put((byte)15, (byte)0);                           // 0f
-      this.global.put((byte)16, (byte)1);                           // 10
-      this.global.put((byte)17, (byte)0);                           // 11
-      this.global.put((byte)18, CFG_ENC_MIDITYPE_SENDRELENC);       // 12
-      this.global.put((byte)19, (byte)51);                          // 13
-      this.global.put((byte)20, (byte)1);                           // 14
-      this.global.put((byte)21, (byte)63);                          // 15
-      this.global.put((byte)22, CFG_ENC_INDICATORTYPE_BLENDEDBAR);  // 16
-      this.global.put((byte)23, (byte)0);                           // 17
-      this.global.put((byte)24, (byte)0);                           // 18
+      clearGlobal();
+      setGlobal(0, (byte)4);                            // System MIDI channel
+      setGlobal(1, (byte)1);                            // Bank Side Buttons
+      setGlobal(2, CFG_GLOBAL_SSACTION_CCTOGGLE);       // Left Button 1 Function
+      setGlobal(3, CFG_GLOBAL_SSACTION_BANKDOWN);       // Left Button 2 Function
+      setGlobal(4, CFG_GLOBAL_SSACTION_CCTOGGLE);       // Left Button 3 Function
+      setGlobal(5, CFG_GLOBAL_SSACTION_CCTOGGLE);       // Right Button 1 Function
+      setGlobal(6, CFG_GLOBAL_SSACTION_BANKUP);         // Right Button 2 Function
+      setGlobal(7, CFG_GLOBAL_SSACTION_CCTOGGLE);       // Right Button 3 Function
+      setGlobal(8, (byte)63);                           // Super Knob Start Point
+      setGlobal(9, (byte)127);                          // Super Knob End Point
+      setGlobal(10, (byte)0);                           // 0a
+      setGlobal(11, (byte)0);                           // 0b CFG_ENC_MOVEMENTTYPE_DIRECT_HIGHRESOLUTION?
+      setGlobal(12, (byte)0);                           // 0c CFG_ENC_SWACTION_CCHOLD?
+      setGlobal(13, (byte)2);                           // 0d
+      setGlobal(14, (byte)0);                           // 0e
+      setGlobal(15, (byte)0);                           // 0f
+      setGlobal(16, (byte)1);                           // 10
+      setGlobal(17, (byte)0);                           // 11
+      setGlobal(18, CFG_ENC_MIDITYPE_SENDRELENC);       // 12
+      setGlobal(19, (byte)51);                          // 13
+      setGlobal(20, (byte)1);                           // 14
+      setGlobal(21, (byte)63);                          // 15
+      setGlobal(22, CFG_ENC_INDICATORTYPE_BLENDEDBAR);  // 16
+      setGlobal(23, (byte)0);                           // 17
+      setGlobal(24, (byte)0);                           // 18
       // Yes this gap matches the Midi Fighter Utility sysex
-      this.global.put((byte)31, (byte)127);                         // 1f  RGB LED Brightness
-      this.global.put((byte)32, (byte)127);                         // 20  Indicator Global Brightness
+      setGlobal(31, (byte)127);                         // 1f  RGB LED Brightness
+      setGlobal(32, (byte)127);                         // 20  Indicator Global Brightness
 
       for (int i = 0; i < this.encoders.length; ++i) {
         Encoder enc = this.encoders[i];
         enc.setDetent(false);
-        enc.set("movement", CFG_ENC_MOVEMENTTYPE_DIRECT_HIGHRESOLUTION);
-        enc.set("switch_action_type", CFG_ENC_SWACTION_CCHOLD);
-        enc.set("switch_midi_channel", (byte)2);
-        enc.set("switch_midi_number", (byte)enc.encoderIndex);
-        enc.set("switch_midi_type", (byte)0);             // Appears no longer in use
-        enc.set("encoder_midi_channel", (byte)1);
-        enc.set("encoder_midi_number", (byte)enc.encoderIndex);
-        enc.set("encoder_midi_type", CFG_ENC_MIDITYPE_SENDRELENC);        // Important! must be relative type
-        enc.set("active_color", (byte)51);                               // MFT default 51
-        enc.set("inactive_color", (byte)1);                              // MFT default 1
-        enc.set("detent_color", (byte)63);                               // MFT default 63
-        enc.set("indicator_display_type", CFG_ENC_INDICATORTYPE_BLENDEDBAR);
-        enc.set("is_super_knob", CFG_FALSE);
-        enc.set("encoder_shift_midi_channel", (byte)0);
+        enc.set(CFG_ENC_ADDR_MOVEMENT, CFG_ENC_MOVEMENTTYPE_DIRECT_HIGHRESOLUTION);
+        enc.set(CFG_ENC_ADDR_SWITCH_ACTION_TYPE, CFG_ENC_SWACTION_CCHOLD);
+        enc.set(CFG_ENC_ADDR_SWITCH_MIDI_CHANNEL, (byte)2);
+        enc.set(CFG_ENC_ADDR_SWITCH_MIDI_NUMBER, (byte)enc.encoderIndex);
+        enc.set(CFG_ENC_ADDR_SWITCH_MIDI_TYPE, (byte)0);             // Appears no longer in use
+        enc.set(CFG_ENC_ADDR_ENCODER_MIDI_CHANNEL, (byte)1);
+        enc.set(CFG_ENC_ADDR_ENCODER_MIDI_NUMBER, (byte)enc.encoderIndex);
+        enc.set(CFG_ENC_ADDR_ENCODER_MIDI_TYPE, CFG_ENC_MIDITYPE_SENDRELENC);        // Important! must be relative type
+        enc.set(CFG_ENC_ADDR_ACTIVE_COLOR, (byte)51);                               // MFT default 51
+        enc.set(CFG_ENC_ADDR_INACTIVE_COLOR, (byte)1);                              // MFT default 1
+        enc.set(CFG_ENC_ADDR_DETENT_COLOR, (byte)63);                               // MFT default 63
+        enc.set(CFG_ENC_ADDR_INDICATOR_DISPLAY_TYPE, CFG_ENC_INDICATORTYPE_BLENDEDBAR);
+        enc.set(CFG_ENC_ADDR_IS_SUPER_KNOB, CFG_FALSE);
+        enc.set(CFG_ENC_ADDR_ENCODER_SHIFT_MIDI_CHANNEL, (byte)0);
       }
 
       this.initialized = true;
@@ -570,53 +820,53 @@ public class MidiFighterTwister extends LXMidiSurface implements LXMidiSurface.B
      * Encoders use absolute CCs, switches use notes.
      */
     private void initializeUserDefaults() {
-      this.global.clear();
-      this.global.put((byte)0, (byte)4);                            // System MIDI channel
-      this.global.put((byte)1, (byte)1);                            // Bank Side Buttons
-      this.global.put((byte)2, CFG_GLOBAL_SSACTION_CCTOGGLE);       // Left Button 1 Function
-      this.global.put((byte)3, CFG_GLOBAL_SSACTION_BANKDOWN);       // Left Button 2 Function
-      this.global.put((byte)4, CFG_GLOBAL_SSACTION_CCTOGGLE);       // Left Button 3 Function
-      this.global.put((byte)5, CFG_GLOBAL_SSACTION_CCTOGGLE);       // Right Button 1 Function
-      this.global.put((byte)6, CFG_GLOBAL_SSACTION_BANKUP);         // Right Button 2 Function
-      this.global.put((byte)7, CFG_GLOBAL_SSACTION_CCTOGGLE);       // Right Button 3 Function
-      this.global.put((byte)8, (byte)63);                           // Super Knob Start Point
-      this.global.put((byte)9, (byte)127);                          // Super Knob End Point
-      this.global.put((byte)10, (byte)0);                           // 0a
-      this.global.put((byte)11, (byte)0);                           // 0b CFG_ENC_MOVEMENTTYPE_DIRECT_HIGHRESOLUTION?
-      this.global.put((byte)12, (byte)0);                           // 0c CFG_ENC_SWACTION_CCHOLD?
-      this.global.put((byte)13, (byte)2);                           // 0d
-      this.global.put((byte)14, (byte)0);                           // 0e
-      this.global.put((byte)15, (byte)0);                           // 0f
-      this.global.put((byte)16, (byte)1);                           // 10
-      this.global.put((byte)17, (byte)0);                           // 11
-      this.global.put((byte)18, CFG_ENC_MIDITYPE_SENDCC);           // 12
-      this.global.put((byte)19, (byte)51);                          // 13
-      this.global.put((byte)20, (byte)1);                           // 14
-      this.global.put((byte)21, (byte)63);                          // 15
-      this.global.put((byte)22, CFG_ENC_INDICATORTYPE_BLENDEDBAR);  // 16
-      this.global.put((byte)23, (byte)0);                           // 17
-      this.global.put((byte)24, (byte)0);                           // 18
+      clearGlobal();
+      setGlobal(0, (byte)4);                            // System MIDI channel
+      setGlobal(1, (byte)1);                            // Bank Side Buttons
+      setGlobal(2, CFG_GLOBAL_SSACTION_CCTOGGLE);       // Left Button 1 Function
+      setGlobal(3, CFG_GLOBAL_SSACTION_BANKDOWN);       // Left Button 2 Function
+      setGlobal(4, CFG_GLOBAL_SSACTION_CCTOGGLE);       // Left Button 3 Function
+      setGlobal(5, CFG_GLOBAL_SSACTION_CCTOGGLE);       // Right Button 1 Function
+      setGlobal(6, CFG_GLOBAL_SSACTION_BANKUP);         // Right Button 2 Function
+      setGlobal(7, CFG_GLOBAL_SSACTION_CCTOGGLE);       // Right Button 3 Function
+      setGlobal(8, (byte)63);                           // Super Knob Start Point
+      setGlobal(9, (byte)127);                          // Super Knob End Point
+      setGlobal(10, (byte)0);                           // 0a
+      setGlobal(11, (byte)0);                           // 0b CFG_ENC_MOVEMENTTYPE_DIRECT_HIGHRESOLUTION?
+      setGlobal(12, (byte)0);                           // 0c CFG_ENC_SWACTION_CCHOLD?
+      setGlobal(13, (byte)2);                           // 0d
+      setGlobal(14, (byte)0);                           // 0e
+      setGlobal(15, (byte)0);                           // 0f
+      setGlobal(16, (byte)1);                           // 10
+      setGlobal(17, (byte)0);                           // 11
+      setGlobal(18, CFG_ENC_MIDITYPE_SENDCC);           // 12
+      setGlobal(19, (byte)51);                          // 13
+      setGlobal(20, (byte)1);                           // 14
+      setGlobal(21, (byte)63);                          // 15
+      setGlobal(22, CFG_ENC_INDICATORTYPE_BLENDEDBAR);  // 16
+      setGlobal(23, (byte)0);                           // 17
+      setGlobal(24, (byte)0);                           // 18
       // Yes this gap matches the Midi Fighter Utility sysex
-      this.global.put((byte)31, (byte)127);                         // 1f  RGB LED Brightness
-      this.global.put((byte)32, (byte)127);                         // 20  Indicator Global Brightness
+      setGlobal(31, (byte)127);                         // 1f  RGB LED Brightness
+      setGlobal(32, (byte)127);                         // 20  Indicator Global Brightness
 
       for (int i = 0; i < this.encoders.length; ++i) {
         Encoder enc = this.encoders[i];
         enc.setDetent(false);
-        enc.set("movement", CFG_ENC_MOVEMENTTYPE_DIRECT_HIGHRESOLUTION);
-        enc.set("switch_action_type", CFG_ENC_SWACTION_NOTEHOLD);
-        enc.set("switch_midi_channel", (byte)2);
-        enc.set("switch_midi_number", (byte)enc.encoderIndex);
-        enc.set("switch_midi_type", (byte)0);             // Appears no longer in use
-        enc.set("encoder_midi_channel", (byte)1);
-        enc.set("encoder_midi_number", (byte)enc.encoderIndex);
-        enc.set("encoder_midi_type", CFG_ENC_MIDITYPE_SENDCC);           // Absolute CC for LX generic mapping
-        enc.set("active_color", (byte)51);                               // MFT default 51
-        enc.set("inactive_color", (byte)RGB_USER);                       // MFT default 1
-        enc.set("detent_color", (byte)63);                               // MFT default 63
-        enc.set("indicator_display_type", CFG_ENC_INDICATORTYPE_BLENDEDBAR);
-        enc.set("is_super_knob", CFG_FALSE);
-        enc.set("encoder_shift_midi_channel", (byte)0);
+        enc.set(CFG_ENC_ADDR_MOVEMENT, CFG_ENC_MOVEMENTTYPE_DIRECT_HIGHRESOLUTION);
+        enc.set(CFG_ENC_ADDR_SWITCH_ACTION_TYPE, CFG_ENC_SWACTION_NOTEHOLD);
+        enc.set(CFG_ENC_ADDR_SWITCH_MIDI_CHANNEL, (byte)2);
+        enc.set(CFG_ENC_ADDR_SWITCH_MIDI_NUMBER, (byte)enc.encoderIndex);
+        enc.set(CFG_ENC_ADDR_SWITCH_MIDI_TYPE, (byte)0);             // Appears no longer in use
+        enc.set(CFG_ENC_ADDR_ENCODER_MIDI_CHANNEL, (byte)1);
+        enc.set(CFG_ENC_ADDR_ENCODER_MIDI_NUMBER, (byte)enc.encoderIndex);
+        enc.set(CFG_ENC_ADDR_ENCODER_MIDI_TYPE, CFG_ENC_MIDITYPE_SENDCC);           // Absolute CC for LX generic mapping
+        enc.set(CFG_ENC_ADDR_ACTIVE_COLOR, (byte)51);                               // MFT default 51
+        enc.set(CFG_ENC_ADDR_INACTIVE_COLOR, (byte)RGB_USER);                       // MFT default 1
+        enc.set(CFG_ENC_ADDR_DETENT_COLOR, (byte)63);                               // MFT default 63
+        enc.set(CFG_ENC_ADDR_INDICATOR_DISPLAY_TYPE, CFG_ENC_INDICATORTYPE_BLENDEDBAR);
+        enc.set(CFG_ENC_ADDR_IS_SUPER_KNOB, CFG_FALSE);
+        enc.set(CFG_ENC_ADDR_ENCODER_SHIFT_MIDI_CHANNEL, (byte)0);
       }
 
       this.initialized = true;
@@ -637,6 +887,73 @@ public class MidiFighterTwister extends LXMidiSurface implements LXMidiSurface.B
   private final Config userConfig = new Config();
   private final Config lxConfig = new Config();
 
+  private final DetentPlanner detentPlanner = new DetentPlanner();
+
+  /**
+   * Plans encoder detents for all four banks of the focused device at once,
+   * so that a focus change causes at most one config push.
+   *
+   * Unfortunately config changes require a reboot to restart the display, which
+   * adds a lag. Encoders are only changed if they hold a parameter whose polarity
+   * doesn't match the current detent. Unused knobs keep whatever detent they have,
+   * which leaves an artifact of center position on empty bipolar knobs.
+   *
+   * Only changes the performer can feel cause a reboot. Changes on hidden banks
+   * wait until a later push or until their bank is shown, and cost nothing if a
+   * later focus change puts the encoder back the way the device has it.
+   */
+  private class DetentPlanner {
+
+    private int numPlans = 0;
+    private int numReboots = 0;
+
+    private void apply(LXListenableNormalizedParameter[] knobs) {
+      ++this.numPlans;
+      final int length = LXUtils.min(knobs.length, lxConfig.encoders.length);
+      for (int i = 0; i < length; ++i) {
+        final LXListenableNormalizedParameter parameter = knobs[i];
+        if (parameter != null) {
+          lxConfig.encoders[i].setDetent(parameter.getPolarity() == Polarity.BIPOLAR);
+        }
+      }
+      flush();
+    }
+
+    /**
+     * Push pending detent changes if any of them is on a visible encoder.
+     * One push for all banks. Knob CCs queued after it wait for the reboot.
+     */
+    private void flush() {
+      for (int i = 0; i < lxConfig.encoders.length; ++i) {
+        if (lxConfig.encoders[i].isModified() && isEncoderVisible(i)) {
+          reportConfigPush(lxConfig.sendModified(), "detent");
+          ++this.numReboots;
+          return;
+        }
+      }
+    }
+  }
+
+  private boolean isEncoderVisible(int encoder) {
+    final int bank = encoder / DEVICE_KNOB_PER_BANK;
+    final int current = this.currentBank.getValuei();
+    return bank == current || (isSuperMod() && bank == getPairedBank(current));
+  }
+
+  /**
+   * Number of focus changes that planned detents
+   */
+  public int getDetentPlans() {
+    return this.detentPlanner.numPlans;
+  }
+
+  /**
+   * Number of detent plans that rebooted the device
+   */
+  public int getDetentReboots() {
+    return this.detentPlanner.numReboots;
+  }
+
   private final DeviceListener deviceListener;
 
   private class DeviceListener implements FocusedDevice.Listener, LXParameterListener {
@@ -651,12 +968,31 @@ public class MidiFighterTwister extends LXMidiSurface implements LXMidiSurface.B
     private final int[] knobTicks = new int[DEVICE_KNOB_NUM];
     private final int[] knobIncrementSize = new int[DEVICE_KNOB_NUM];
 
+    // Knobs with a parameter change that has not been sent to the indicator yet
+    private final BitSet knobDirty = new BitSet(DEVICE_KNOB_NUM);
+
+    // Lookup from registered parameter to knob indices
+    private final ParameterSlotIndex knobIndex = new ParameterSlotIndex();
+
+    // Encoder ticks received during this frame, applied once per frame
+    private final BitSet knobPending = new BitSet(DEVICE_KNOB_NUM);
+    private final int[] pendingTicks = new int[DEVICE_KNOB_NUM];
+    private final int[] pendingCount = new int[DEVICE_KNOB_NUM];
+    private final double[] pendingAmount = new double[DEVICE_KNOB_NUM];
+
+    // Engine time, summed from frame deltas. MIDI input is handled once per frame,
+    // so tick speed is measured in frames rather than by arrival time.
+    private double frameMs = 0;
+    private final double[] lastTickFrameMs = new double[DEVICE_KNOB_NUM];
+
     private DeviceListener(LX lx) {
       for (int i = 0; i < this.knobs.length; ++i) {
         this.knobs[i] = null;
         this.knobTicks[i] = 0;
         this.knobIncrementSize[i] = 1;
       }
+      // No previous tick, the first one is never accelerated
+      Arrays.fill(this.lastTickFrameMs, Double.NEGATIVE_INFINITY);
 
       this.focusedDevice = new FocusedDevice(lx, MidiFighterTwister.this, this);
       this.focusedDevice.setAuxSticky(true);
@@ -664,46 +1000,118 @@ public class MidiFighterTwister extends LXMidiSurface implements LXMidiSurface.B
 
     @Override
     public void onDeviceFocused(LXDeviceComponent device) {
+      if (inBankFlip && (device == null || device == this.device)) {
+        // Both views of the device are already on the hardware, the bank
+        // select is all that needs to be sent.
+        return;
+      }
       registerDevice(device);
     }
 
     private void resend() {
-      final boolean isAux = isAux();
-
       // Sysex config changes require reboot therefore must happen before MIDI commands
-      for (int i = 0; i < this.knobs.length; ++i) {
-        LXListenableNormalizedParameter parameter = this.knobs[i];
-        Config.Encoder enc = i < lxConfig.encoders.length ? lxConfig.encoders[i] : null;
-        if (parameter != null && enc != null) {
-          enc.setDetent(parameter.getPolarity() == Polarity.BIPOLAR);
-        } else if (enc != null) {
-          enc.setDetent(false);
+      detentPlanner.apply(this.knobs);
+
+      // Midi commands
+      schedulePaint();
+    }
+
+    /*
+     * Knob painting. The bank the performer is looking at is painted immediately,
+     * hidden banks are filled in a few knobs per frame.
+     */
+
+    private static final int HIDDEN_PAINTS_PER_FRAME = 4;
+
+    // Knobs waiting to be painted
+    private final BitSet paintPending = new BitSet(DEVICE_KNOB_NUM);
+
+    // Number of knobs that were given a slot by the device, including empty slots
+    private int numKnobSlots = 0;
+
+    /**
+     * Paint every knob, visible bank first. Replaces any paints still pending
+     * from a previous focus, those will be painted from the current state.
+     */
+    private void schedulePaint() {
+      this.paintPending.set(0, this.knobs.length);
+      paintVisibleBank();
+    }
+
+    /**
+     * Paint any pending knobs in the current bank right away. In SuperMod mode
+     * the paired bank is painted too, so that a mod state flip only needs a
+     * bank select.
+     */
+    private void paintVisibleBank() {
+      final int bank = currentBank.getValuei();
+      paintBank(bank);
+      if (isSuperMod()) {
+        paintBank(getPairedBank(bank));
+      }
+    }
+
+    private void paintBank(int bank) {
+      final int start = bank * DEVICE_KNOB_PER_BANK;
+      final int end = LXUtils.min(start + DEVICE_KNOB_PER_BANK, this.knobs.length);
+      for (int i = this.paintPending.nextSetBit(start); i >= 0 && i < end; i = this.paintPending.nextSetBit(i + 1)) {
+        paintKnob(i);
+      }
+      this.paintPending.clear(start, end);
+    }
+
+    /**
+     * Paint a few pending hidden knobs. Called once per frame.
+     */
+    private void flushPaints() {
+      for (int n = 0; n < HIDDEN_PAINTS_PER_FRAME; ++n) {
+        final int i = this.paintPending.nextSetBit(0);
+        if (i < 0) {
+          return;
         }
+        this.paintPending.clear(i);
+        paintKnob(i);
       }
-      lxConfig.sendModified();  // Unfortunately config changes require a reboot to restart the display.  This adds a lag.
+    }
 
-      // Midi commands
-      for (int i = 0; i < this.knobs.length; ++i) {
-        LXListenableNormalizedParameter parameter = this.knobs[i];
-        if (parameter != null) {
-          sendControlChange(CHANNEL_ANIMATIONS_AND_BRIGHTNESS, DEVICE_KNOB + i, RGB_ANIMATION_NONE);
-          sendControlChange(CHANNEL_ANIMATIONS_AND_BRIGHTNESS, DEVICE_KNOB + i, INDICATOR_ANIMATION_NONE);
-          sendControlChange(CHANNEL_ANIMATIONS_AND_BRIGHTNESS, DEVICE_KNOB + i, INDICATOR_BRIGHTNESS_MAX);
-          double normalized = parameter.getBaseNormalized();
-          sendControlChange(CHANNEL_ROTARY_ENCODER, DEVICE_KNOB + i, (int) (normalized * 127));
-          sendControlChange(CHANNEL_ANIMATIONS_AND_BRIGHTNESS, DEVICE_KNOB + i, RGB_BRIGHTNESS_MAX);
-          sendControlChange(CHANNEL_SWITCH_AND_COLOR, DEVICE_KNOB + i, isAux ? RGB_AUX : RGB_PRIMARY);
+    private void cancelPaints() {
+      this.paintPending.clear();
+    }
+
+    private void paintKnob(int i) {
+      final LXListenableNormalizedParameter parameter = this.knobs[i];
+      if (parameter != null) {
+        sendControlChangeCached(CHANNEL_ANIMATIONS_AND_BRIGHTNESS, DEVICE_KNOB + i, INDICATOR_ANIMATION_NONE);
+        sendControlChangeCached(CHANNEL_ANIMATIONS_AND_BRIGHTNESS, DEVICE_KNOB + i, INDICATOR_BRIGHTNESS_MAX);
+        double normalized = parameter.getBaseNormalized();
+        sendControlChangeCached(CHANNEL_ROTARY_ENCODER, DEVICE_KNOB + i, (int) (normalized * 127));
+        sendControlChangeCached(CHANNEL_ANIMATIONS_AND_BRIGHTNESS, DEVICE_KNOB + i, RGB_BRIGHTNESS_MAX);
+        paintModulated(i);
+      } else {
+        sendControlChangeCached(CHANNEL_ANIMATIONS_AND_BRIGHTNESS, DEVICE_KNOB + i, RGB_ANIMATION_NONE);
+        sendControlChangeCached(CHANNEL_ANIMATIONS_AND_BRIGHTNESS, DEVICE_KNOB + i, INDICATOR_ANIMATION_NONE);
+        sendControlChangeCached(CHANNEL_ANIMATIONS_AND_BRIGHTNESS, DEVICE_KNOB + i, INDICATOR_BRIGHTNESS_25);
+        if (i < lxConfig.encoders.length && lxConfig.encoders[i].hasDetent()) {
+          sendControlChangeCached(CHANNEL_ROTARY_ENCODER, DEVICE_KNOB+i, 63);
         } else {
-          sendControlChange(CHANNEL_ANIMATIONS_AND_BRIGHTNESS, DEVICE_KNOB + i, RGB_ANIMATION_NONE);
-          sendControlChange(CHANNEL_ANIMATIONS_AND_BRIGHTNESS, DEVICE_KNOB + i, INDICATOR_ANIMATION_NONE);
-          sendControlChange(CHANNEL_ANIMATIONS_AND_BRIGHTNESS, DEVICE_KNOB + i, INDICATOR_BRIGHTNESS_25);
-          if (i <= lxConfig.encoders.length && lxConfig.encoders[i].has_detent.value == CFG_TRUE) {
-            sendControlChange(CHANNEL_ROTARY_ENCODER, DEVICE_KNOB+i, 63);
-          } else {
-            sendControlChange(CHANNEL_ROTARY_ENCODER, DEVICE_KNOB+i, 0);
-          }
-          sendControlChange(CHANNEL_ANIMATIONS_AND_BRIGHTNESS, DEVICE_KNOB + i, RGB_BRIGHTNESS_OFF);
+          sendControlChangeCached(CHANNEL_ROTARY_ENCODER, DEVICE_KNOB+i, 0);
         }
+        sendControlChangeCached(CHANNEL_ANIMATIONS_AND_BRIGHTNESS, DEVICE_KNOB + i, RGB_BRIGHTNESS_OFF);
+      }
+      if (i < this.numKnobSlots) {
+        sendControlChangeCached(CHANNEL_SWITCH_AND_COLOR, DEVICE_KNOB + i, isAux() ? RGB_AUX : RGB_PRIMARY);
+      }
+    }
+
+    /**
+     * Pulse the knob's RGB if its parameter is modulated
+     */
+    private void paintModulated(int i) {
+      final LXListenableNormalizedParameter parameter = this.knobs[i];
+      if (parameter instanceof LXCompoundModulation.Target && ((LXCompoundModulation.Target)parameter).getModulations().size() > 0) {
+        sendControlChangeCached(CHANNEL_ANIMATIONS_AND_BRIGHTNESS, DEVICE_KNOB + i, RGB_PULSE_EVERY_2_BEATS);
+      } else {
+        sendControlChangeCached(CHANNEL_ANIMATIONS_AND_BRIGHTNESS, DEVICE_KNOB + i, RGB_ANIMATION_NONE);
       }
     }
 
@@ -722,35 +1130,13 @@ public class MidiFighterTwister extends LXMidiSurface implements LXMidiSurface.B
       LXListenableNormalizedParameter[] remoteControls = null;
 
       // Sysex config changes require reboot therefore must happen before MIDI commands
-      int e = 0;
       if (this.device != null) {
         remoteControls = getDeviceRemoteControls();
-        for (LXListenableNormalizedParameter parameter : remoteControls) {
-          if (e >= this.knobs.length || e >= lxConfig.encoders.length) {
-            break;
-          }
-          Config.Encoder enc = lxConfig.encoders[e];
-          if (parameter != null) {
-            enc.setDetent(parameter.getPolarity() == Polarity.BIPOLAR);
-          } else {
-            enc.setDetent(false);
-          }
-          ++e;
-        }
+        detentPlanner.apply(remoteControls);
       }
-      // JKB note: Skip adjustments to unused knobs to minimize reboots.
-      // Currently this leaves an artifact of center position on bipolar knobs.
-      /* while (e < lxConfig.encoders.length) {
-        MFTconfig.EncoderConfig enc = lxConfig.encoders[e];
-         enc.setDetent(false);
-        ++e;
-      } */
-      lxConfig.sendModified();  // Unfortunately config changes require a reboot to restart the display.  This adds a lag.
 
       int i = 0;
       if (this.device != null) {
-        final boolean isAux = isAux();
-        final List<LXParameter> uniqueParameters = new ArrayList<LXParameter>();
         for (LXListenableNormalizedParameter parameter : remoteControls) {
           if (i >= this.knobs.length) {
             break;
@@ -764,55 +1150,32 @@ public class MidiFighterTwister extends LXMidiSurface implements LXMidiSurface.B
               this.knobTicks[i] = (int) (parameter.getNormalized() * 127);
               this.knobIncrementSize[i] = LXUtils.max(1, (int) (127/discrete.getRange()));
             }
-            if (!uniqueParameters.contains(parameter)) {
+            if (this.knobIndex.add(parameter, i)) {
               parameter.addListener(this);
-              uniqueParameters.add(parameter);
-            }
-            sendControlChange(CHANNEL_ANIMATIONS_AND_BRIGHTNESS, DEVICE_KNOB + i, INDICATOR_ANIMATION_NONE);
-            sendControlChange(CHANNEL_ANIMATIONS_AND_BRIGHTNESS, DEVICE_KNOB + i, INDICATOR_BRIGHTNESS_MAX);
-            double normalized = parameter.getBaseNormalized();
-            sendControlChange(CHANNEL_ROTARY_ENCODER, DEVICE_KNOB + i, (int) (normalized * 127));
-            sendControlChange(CHANNEL_ANIMATIONS_AND_BRIGHTNESS, DEVICE_KNOB + i, RGB_BRIGHTNESS_MAX);
-            if (parameter instanceof LXCompoundModulation.Target && ((LXCompoundModulation.Target)parameter).getModulations().size() > 0) {
-              sendControlChange(CHANNEL_ANIMATIONS_AND_BRIGHTNESS, DEVICE_KNOB + i, RGB_PULSE_EVERY_2_BEATS);
-            } else {
-              sendControlChange(CHANNEL_ANIMATIONS_AND_BRIGHTNESS, DEVICE_KNOB + i, RGB_ANIMATION_NONE);
             }
-          } else {
-            sendControlChange(CHANNEL_ANIMATIONS_AND_BRIGHTNESS, DEVICE_KNOB + i, RGB_ANIMATION_NONE);
-            sendControlChange(CHANNEL_ANIMATIONS_AND_BRIGHTNESS, DEVICE_KNOB + i, INDICATOR_ANIMATION_NONE);
-            sendControlChange(CHANNEL_ANIMATIONS_AND_BRIGHTNESS, DEVICE_KNOB + i, INDICATOR_BRIGHTNESS_25);
-            if (i <= lxConfig.encoders.length && lxConfig.encoders[i].has_detent.value == CFG_TRUE) {
-              sendControlChange(CHANNEL_ROTARY_ENCODER, DEVICE_KNOB+i, 63);
-            } else {
-              sendControlChange(CHANNEL_ROTARY_ENCODER, DEVICE_KNOB+i, 0);
-            }
-            sendControlChange(CHANNEL_ANIMATIONS_AND_BRIGHTNESS, DEVICE_KNOB + i, RGB_BRIGHTNESS_OFF);
           }
-          sendControlChange(CHANNEL_SWITCH_AND_COLOR, DEVICE_KNOB + i, isAux ? RGB_AUX : RGB_PRIMARY);
           ++i;
         }
       }
-      while (i < this.knobs.length) {
-        sendControlChange(CHANNEL_ANIMATIONS_AND_BRIGHTNESS, DEVICE_KNOB + i, RGB_ANIMATION_NONE);
-        sendControlChange(CHANNEL_ANIMATIONS_AND_BRIGHTNESS, DEVICE_KNOB + i, INDICATOR_ANIMATION_NONE);
-        sendControlChange(CHANNEL_ANIMATIONS_AND_BRIGHTNESS, DEVICE_KNOB + i, INDICATOR_BRIGHTNESS_25);
-        if (i <= lxConfig.encoders.length && lxConfig.encoders[i].has_detent.value == CFG_TRUE) {
-          sendControlChange(CHANNEL_ROTARY_ENCODER, DEVICE_KNOB+i, 63);
-        } else {
-          sendControlChange(CHANNEL_ROTARY_ENCODER, DEVICE_KNOB+i, 0);
-        }
-        sendControlChange(CHANNEL_ANIMATIONS_AND_BRIGHTNESS, DEVICE_KNOB + i, RGB_BRIGHTNESS_OFF);
-        ++i;
-      }
+      this.numKnobSlots = i;
+      schedulePaint();
     }
 
+    // Combined remote controls + mods, reused while neither source changes
+    private LXListenableNormalizedParameter[] combinedControls = null;
+    private LXListenableNormalizedParameter[] combinedRemoteControls = null;
+    private ModParameter[] combinedMods = null;
+
     private LXListenableNormalizedParameter[] getDeviceRemoteControls() {
       if (isSuperMod()) {
         // In SuperMod mode, use virtual banks 3 and 4 for the ModParameters.
         // This allows fast switching without rebooting the surface.
-        ModParameter[] mods = SuperMod.current.getRemoteMods(this.device);
+        // SuperMod returns the same mods array while the device version is unchanged.
+        ModParameter[] mods = SuperMod.current.getRemoteMods(MidiFighterTwister.this, this.device, 0, this.knobs.length - SUPERMOD_KNOB_OFFSET);
         LXListenableNormalizedParameter[] remoteControls = this.device.getRemoteControls();
+        if (mods == this.combinedMods && remoteControls == this.combinedRemoteControls) {
+          return this.combinedControls;
+        }
         LXListenableNormalizedParameter[] combinedControls = new LXListenableNormalizedParameter[SUPERMOD_KNOB_OFFSET + mods.length];
         for (int i = LXUtils.min(remoteControls.length, SUPERMOD_KNOB_OFFSET) - 1; i >= 0; i--) {
           combinedControls[i] = remoteControls[i];
@@ -823,6 +1186,9 @@ public class MidiFighterTwister extends LXMidiSurface implements LXMidiSurface.B
         for (int i = 0; i < mods.length; i++) {
           combinedControls[i + SUPERMOD_KNOB_OFFSET] = mods[i];
         }
+        this.combinedControls = combinedControls;
+        this.combinedRemoteControls = remoteControls;
+        this.combinedMods = mods;
         return combinedControls;
       } else {
         return this.device.getRemoteControls();
@@ -843,58 +1209,158 @@ public class MidiFighterTwister extends LXMidiSurface implements LXMidiSurface.B
         registerDeviceKnobs();
         return;
       }
-      for (int i = 0; i < this.knobs.length; ++i) {
-        if (parameter == this.knobs[i]) {
+      final ParameterSlotIndex.Slots slots = this.knobIndex.get(parameter);
+      if (slots == null) {
+        return;
+      }
+      // Normalized DiscreteParameters need artificial tracking of absolute knob location.
+      // Keep local tracking in sync with changes from other source.
+      final boolean isNormalizedDiscrete =
+        parameter instanceof DiscreteParameter && ((DiscreteParameter)parameter).getIncrementMode() == IncrementMode.NORMALIZED;
+      for (int s = 0; s < slots.size(); ++s) {
+        final int i = slots.get(s);
+        if (isNormalizedDiscrete) {
+          this.knobTicks[i] = (int) (this.knobs[i].getBaseNormalized() * 127);
+        }
+        // Indicator is sent at most once per frame
+        this.knobDirty.set(i);
+      }
+    }
+
+    /**
+     * Send indicator values for knobs that changed since the last frame.
+     * Repeats of the same quantized value are dropped by the CC cache.
+     */
+    private void flushKnobs() {
+      for (int i = this.knobDirty.nextSetBit(0); i >= 0; i = this.knobDirty.nextSetBit(i + 1)) {
+        if (this.knobs[i] != null) {
           double normalized = this.knobs[i].getBaseNormalized();
-          // Normalized DiscreteParameters need artificial tracking of absolute knob location.
-          // Keep local tracking in sync with changes from other source.
-          if (parameter instanceof DiscreteParameter && ((DiscreteParameter)parameter).getIncrementMode() == IncrementMode.NORMALIZED) {
-            this.knobTicks[i] = (int) (normalized * 127);
+          sendControlChangeCached(CHANNEL_ROTARY_ENCODER, DEVICE_KNOB + i, (int) (normalized * 127));
+          // A SuperMod edit can add or remove a modulation on the normal view of the same parameter
+          if (i >= SUPERMOD_KNOB_OFFSET && this.knobs[i] instanceof ModParameter) {
+            final int pair = i - SUPERMOD_KNOB_OFFSET;
+            if (this.knobs[pair] != null && !this.paintPending.get(pair)) {
+              paintModulated(pair);
+            }
           }
-          sendControlChange(CHANNEL_ROTARY_ENCODER, DEVICE_KNOB + i, (int) (normalized * 127));
         }
       }
+      this.knobDirty.clear();
     }
 
     private final static double KNOB_INCREMENT_AMOUNT = 1/127.;
 
-    private void onKnobIncrement(int index, boolean isUp) {
+    /**
+     * Record an encoder tick. Ticks are summed per knob and applied on the next frame.
+     *
+     * @param velocity Speed multiplier reported by the encoder
+     */
+    private void onKnobTick(int index, boolean isUp, double velocity) {
+      if (this.knobs[index] == null) {
+        return;
+      }
+
+      final int direction = isUp ? 1 : -1;
+      this.pendingTicks[index] += direction;
+      ++this.pendingCount[index];
+      this.pendingAmount[index] += direction * velocity * KNOB_INCREMENT_AMOUNT;
+      this.knobPending.set(index);
+    }
+
+    /**
+     * Apply the ticks received for each knob during this frame, accelerated
+     * by how quickly they came in.
+     */
+    private void flushKnobTicks(double deltaMs) {
+      this.frameMs += deltaMs;
+      for (int i = this.knobPending.nextSetBit(0); i >= 0; i = this.knobPending.nextSetBit(i + 1)) {
+        final int ticks = this.pendingTicks[i];
+        final double amount = this.pendingAmount[i] * getKnobAcceleration(i, this.pendingCount[i], deltaMs);
+        this.pendingTicks[i] = 0;
+        this.pendingCount[i] = 0;
+        this.pendingAmount[i] = 0;
+        this.lastTickFrameMs[i] = this.frameMs;
+        onKnobIncrement(i, ticks, amount);
+      }
+      this.knobPending.clear();
+    }
+
+    /**
+     * Acceleration for a frame's ticks, from the average time between them. A single
+     * tick is timed from the previous frame with ticks. Several ticks in one frame
+     * arrived within that frame, so they are at most deltaMs apart in total.
+     */
+    private double getKnobAcceleration(int index, int count, double deltaMs) {
+      double intervalMs = (this.frameMs - this.lastTickFrameMs[index]) / count;
+      if (count > 1) {
+        intervalMs = LXUtils.min(intervalMs, deltaMs / (count - 1));
+      }
+      if (intervalMs < KNOB_ACCELERATION_WINDOW_MS) {
+        return 1 + (KNOB_ACCELERATION_MAX - 1) * (1 - intervalMs / KNOB_ACCELERATION_WINDOW_MS);
+      }
+      return 1;
+    }
+
+    private void clearKnobTicks() {
+      this.knobPending.clear();
+      Arrays.fill(this.pendingTicks, 0);
+      Arrays.fill(this.pendingCount, 0);
+      Arrays.fill(this.pendingAmount, 0);
+    }
+
+    /**
+     * Apply one frame's worth of encoder ticks to a knob
+     *
+     * @param ticks Net number of ticks, positive for up
+     * @param amount Accelerated normalized amount, used for continuous parameters
+     */
+    private void onKnobIncrement(int index, int ticks, double amount) {
       LXListenableNormalizedParameter knob = this.knobs[index];
-      if (knob != null) {
+      if (knob != null && ticks != 0) {
+        // Discrete parameters are not accelerated, every tick counts once
+        final boolean isUp = ticks > 0;
+        final int numTicks = Math.abs(ticks);
         if (knob instanceof DiscreteParameter) {
           if (((DiscreteParameter)knob).getIncrementMode() == IncrementMode.NORMALIZED) {
-            int value = this.knobTicks[index] + (isUp ? 1 : -1);
-            if (knob.isWrappable()) {
-              // Make the length of the wrap space the same as the length between other values on this parameter
-              if (value < 0-this.knobIncrementSize[index] || value > 127+this.knobIncrementSize[index]) {
-                value = value < 0 ? 127 : 0;
+            int value = this.knobTicks[index];
+            for (int t = 0; t < numTicks; ++t) {
+              value += isUp ? 1 : -1;
+              if (knob.isWrappable()) {
+                // Make the length of the wrap space the same as the length between other values on this parameter
+                if (value < 0-this.knobIncrementSize[index] || value > 127+this.knobIncrementSize[index]) {
+                  value = value < 0 ? 127 : 0;
+                }
+              } else {
+                value = LXUtils.constrain(value, 0, 127);
               }
-              this.knobTicks[index] = value;
-              value = LXUtils.constrain(value, 0, 127);
-            } else {
-              value = LXUtils.constrain(value, 0, 127);
-              this.knobTicks[index] = value;
             }
-            knob.setNormalized(value/127.);
+            this.knobTicks[index] = value;
+            knob.setNormalized(LXUtils.constrain(value, 0, 127)/127.);
           } else {
             // IncrementMode == RELATIVE
             // Move after a set number of ticks in the same direction
-            if (isUp) {
-              this.knobTicks[index] = LXUtils.max(this.knobTicks[index], 0) + 1;
-            } else {
-              this.knobTicks[index] = LXUtils.min(this.knobTicks[index], 0) - 1;
+            int increments = 0;
+            for (int t = 0; t < numTicks; ++t) {
+              if (isUp) {
+                this.knobTicks[index] = LXUtils.max(this.knobTicks[index], 0) + 1;
+              } else {
+                this.knobTicks[index] = LXUtils.min(this.knobTicks[index], 0) - 1;
+              }
+              if (this.knobTicks[index] == KNOB_TICKS_PER_DISCRETE_INCREMENT * (isUp ? 1 : -1)) {
+                this.knobTicks[index] = 0;
+                ++increments;
+              }
             }
-            if (this.knobTicks[index] == KNOB_TICKS_PER_DISCRETE_INCREMENT * (isUp ? 1 : -1)) {
-              this.knobTicks[index] = 0;
+            if (increments > 0) {
               if (isUp) {
-                ((DiscreteParameter)knob).increment();
+                ((DiscreteParameter)knob).increment(increments);
               } else {
-                ((DiscreteParameter)knob).decrement();
+                ((DiscreteParameter)knob).decrement(increments);
               }
             }
           }
         } else {
-          knob.incrementNormalized(KNOB_INCREMENT_AMOUNT * (isUp ? 1 : -1));
+          knob.incrementNormalized(amount);
         }
       }
     }
@@ -914,6 +1380,11 @@ public class MidiFighterTwister extends LXMidiSurface implements LXMidiSurface.B
               bp.toggle();
             }
           }
+        } else if (p instanceof ModParameter && clickCyclesModulation.isOn()) {
+          // Choose which modulation the knob adjusts
+          if (isPressed) {
+            ((ModParameter) p).selectNextModulation();
+          }
         } else {
           // Set other parameter types to default value on click
           if (isPressed) {
@@ -942,23 +1413,32 @@ public class MidiFighterTwister extends LXMidiSurface implements LXMidiSurface.B
       if (this.device != null) {
         this.device.remoteControlsChanged.removeListener(this);
         unregisterDeviceKnobs();
+        if (isSMregistered) {
+          SuperMod.current.releaseRemoteMods(MidiFighterTwister.this);
+        }
       }
+      this.combinedControls = null;
+      this.combinedRemoteControls = null;
+      this.combinedMods = null;
       this.device = null;
     }
 
     private void unregisterDeviceKnobs() {
-      final List<LXParameter> uniqueParameters = new ArrayList<LXParameter>();
+      for (LXParameter parameter : this.knobIndex.parameters()) {
+        ((LXListenableNormalizedParameter) parameter).removeListener(this);
+      }
+      this.knobIndex.clear();
       for (int i = 0; i < this.knobs.length; ++i) {
         if (this.knobs[i] != null) {
-          if (!uniqueParameters.contains(this.knobs[i])) {
-            uniqueParameters.add(this.knobs[i]);
-            this.knobs[i].removeListener(this);
-          }
           this.knobs[i] = null;
           this.knobTicks[i] = 0;
           this.knobIncrementSize[i] = 1;
         }
       }
+      this.knobDirty.clear();
+      clearKnobTicks();
+      cancelPaints();
+      this.numKnobSlots = 0;
     }
 
     private boolean isRegistered = false;
@@ -981,16 +1461,38 @@ public class MidiFighterTwister extends LXMidiSurface implements LXMidiSurface.B
 
   public MidiFighterTwister(LX lx, LXMidiInput input, LXMidiOutput output) {
     super(lx, input, output);
+    invalidateCCCache();
     this.deviceListener = new DeviceListener(lx);
     addSetting("knobClickMode", this.knobClickMode);
+    addSetting("clickCyclesModulation", this.clickCyclesModulation);
     addSetting("focusMode", this.focusMode);
     addSetting("isAux", this.isAux);
     addSetting("currentBank", this.currentBank);
     addSetting("isSuperMod", this.isSuperMod);
+    addSetting("outputRate", this.outputRate);
+    this.outputQueue.setRate(this.outputRate.getValue());
+
+    lx.engine.addLoopTask(this.loopTask);
 
     registerSM();
   }
 
+  private final LXLoopTask loopTask = (deltaMs) -> {
+    onLoop(deltaMs);
+  };
+
+  /**
+   * Runs once per engine frame
+   */
+  private void onLoop(double deltaMs) {
+    drainInput();
+    this.deviceListener.flushKnobTicks(deltaMs);
+    this.deviceListener.flushKnobs();
+    this.deviceListener.flushPaints();
+    flushReplay();
+    checkOutputSaturation(deltaMs);
+  }
+
   @Override
   public void onParameterChanged(LXParameter p) {
     super.onParameterChanged(p);
@@ -1001,6 +1503,8 @@ public class MidiFighterTwister extends LXMidiSurface implements LXMidiSurface.B
       updateBank(this.currentBank.getValuei(), false);
     } else if (this.isSuperMod == p) {
       this.deviceListener.onSuperModChanged();
+    } else if (this.outputRate == p) {
+      this.outputQueue.setRate(this.outputRate.getValue());
     }
   }
 
@@ -1010,6 +1514,16 @@ public class MidiFighterTwister extends LXMidiSurface implements LXMidiSurface.B
 
   private boolean inUpdateBank = false;
 
+  // Set while a bank change updates the remote control focus
+  private boolean inBankFlip = false;
+
+  /**
+   * In SuperMod mode banks 1-2 and 3-4 hold the normal and mod views of the same knobs
+   */
+  private static int getPairedBank(int bank) {
+    return bank ^ 2;
+  }
+
   private void updateBank(int bank, boolean fromHardware) {
     if (this.inUpdateBank) {
       return;
@@ -1021,11 +1535,22 @@ public class MidiFighterTwister extends LXMidiSurface implements LXMidiSurface.B
       this.lx.command.perform(new LXCommand.Parameter.SetValue(this.currentBank, bank));
     } else {
       // Tell the hardware the new state if this change was internal
-      sendControlChange(CHANNEL_SYSTEM, bank, BANK_ON);
+      sendControlChangeCached(CHANNEL_SYSTEM, bank, BANK_ON);
     }
     this.inUpdateBank = false;
 
-    this.deviceListener.focusedDevice.updateRemoteControlFocus();
+    this.inBankFlip = true;
+    try {
+      this.deviceListener.focusedDevice.updateRemoteControlFocus();
+    } finally {
+      this.inBankFlip = false;
+    }
+
+    // Detent changes held back while the bank was hidden
+    this.detentPlanner.flush();
+
+    // Knobs of the newly visible bank may still be waiting for a background paint
+    this.deviceListener.paintVisibleBank();
   }
 
   private boolean initialized = false;
@@ -1043,27 +1568,175 @@ public class MidiFighterTwister extends LXMidiSurface implements LXMidiSurface.B
     }
   }
 
+  /*
+   * Reconnect. The config survives a power cycle, only the display is lost.
+   * The LX config is still sent, it is skipped when the port already holds it.
+   * Everything the hardware was showing is in the CC cache, so it is replayed
+   * from there: visible knobs immediately, the rest a few CCs per frame.
+   */
+
+  private static final int REPLAY_CCS_PER_FRAME = 8;
+
+  // CC numbers whose cached values have not been replayed yet
+  private final BitSet replayPending = new BitSet(CC_NUM_NUMBERS);
+
   @Override
   protected void onReconnect() {
     if (this.enabled.isOn()) {
-      this.deviceListener.resend();
+      // A different MFT may have been plugged in. Skipped if the port already holds the config.
+      final CompletableFuture<Void> push = this.lxConfig.sendAll();
+      reportConfigPush(push, "LX");
+      sendControlChangeCached(CHANNEL_SYSTEM, this.currentBank.getValuei(), BANK_ON);
+      if (!push.isDone()) {
+        // The knobs are repainted once the device has rebooted
+        return;
+      }
+      this.replayPending.set(0, CC_NUM_NUMBERS);
+      final int bank = this.currentBank.getValuei();
+      replayBank(bank);
+      if (isSuperMod()) {
+        replayBank(getPairedBank(bank));
+      }
+    } else {
+      invalidateCCCache();
+    }
+  }
+
+  private void replayBank(int bank) {
+    final int start = DEVICE_KNOB + bank * DEVICE_KNOB_PER_BANK;
+    for (int cc = start; cc < start + DEVICE_KNOB_PER_BANK; ++cc) {
+      if (!replayCC(cc)) {
+        return;
+      }
     }
   }
 
+  private void flushReplay() {
+    for (int n = 0; n < REPLAY_CCS_PER_FRAME; ++n) {
+      final int cc = this.replayPending.nextSetBit(0);
+      if (cc < 0 || !replayCC(cc)) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * Resend every cached value for a CC number.
+   *
+   * @return false if the output queue was full, the CC stays pending
+   */
+  private boolean replayCC(int cc) {
+    if (!this.replayPending.get(cc)) {
+      return true;
+    }
+    for (int row = 0; row < CC_NUM_ROWS; ++row) {
+      final int value = this.ccSent[row][cc];
+      if (value != CC_UNKNOWN) {
+        final int channel = row < CC_ROW_RGB_ANIMATION ? row : CHANNEL_ANIMATIONS_AND_BRIGHTNESS;
+        if (!this.outputQueue.controlChange(channel, cc, value)) {
+          checkOutputDropped();
+          return false;
+        }
+      }
+    }
+    this.replayPending.clear(cc);
+    return true;
+  }
+
+  /*
+   * Outbound CC cache
+   */
+
+  private static final int CC_UNKNOWN = -1;
+  private static final int CC_UNCACHED = -1;
+
+  // The animation channel carries several independent LED states on the same CC,
+  // selected by value range. Each range gets its own row so they don't overwrite each other.
+  private static final int CC_ROW_RGB_ANIMATION = 16;
+  private static final int CC_ROW_RGB_BRIGHTNESS = 17;
+  private static final int CC_ROW_INDICATOR_ANIMATION = 18;
+  private static final int CC_ROW_INDICATOR_BRIGHTNESS = 19;
+  private static final int CC_NUM_ROWS = 20;
+  private static final int CC_NUM_NUMBERS = 128;
+
+  // Last value sent for each (row, CC)
+  private final int[][] ccSent = new int[CC_NUM_ROWS][CC_NUM_NUMBERS];
+
+  private int getCCRow(int channel, int value) {
+    switch (channel) {
+      case CHANNEL_SYSTEM:
+        // Bank changes also happen on the hardware, always send
+        return CC_UNCACHED;
+      case CHANNEL_ANIMATIONS_AND_BRIGHTNESS:
+        if (value <= RGB_PULSE_EVERY_EIGTH_BEAT || value == RAINBOW_CYCLE) {
+          return CC_ROW_RGB_ANIMATION;
+        } else if (value <= RGB_BRIGHTNESS_MAX) {
+          return CC_ROW_RGB_BRIGHTNESS;
+        } else if (value <= INDICATOR_PULSE_EVERY_SIXTEENTH_BEAT) {
+          return CC_ROW_INDICATOR_ANIMATION;
+        } else if (value <= INDICATOR_BRIGHTNESS_MAX) {
+          return CC_ROW_INDICATOR_BRIGHTNESS;
+        }
+        return CC_UNCACHED;
+      default:
+        return channel;
+    }
+  }
+
+  /**
+   * Send a CC only if it would change what the hardware is showing.
+   */
+  private void sendControlChangeCached(int channel, int cc, int value) {
+    final int row = getCCRow(channel, value);
+    if (row != CC_UNCACHED) {
+      if (this.ccSent[row][cc] == value) {
+        return;
+      }
+      this.ccSent[row][cc] = value;
+    }
+    if (!this.outputQueue.controlChange(channel, cc, value)) {
+      // Output queue is full, send again next time
+      if (row != CC_UNCACHED) {
+        this.ccSent[row][cc] = CC_UNKNOWN;
+      }
+      checkOutputDropped();
+    }
+  }
+
+  /**
+   * Forget a single value that was changed by the hardware itself.
+   * Only for channels that are cached by channel number.
+   */
+  private void invalidateCCCache(int channel, int cc) {
+    this.ccSent[channel][cc] = CC_UNKNOWN;
+  }
+
+  /**
+   * Forget all values sent to the hardware. Call when the device may have
+   * reset its display, such as after a reconnect or a config reboot.
+   */
+  private void invalidateCCCache() {
+    for (int[] row : this.ccSent) {
+      Arrays.fill(row, CC_UNKNOWN);
+    }
+    // Nothing left to replay, the display will be repainted
+    this.replayPending.clear();
+  }
+
   private void initialize() {
     this.initialized = true;
     initializeConfig();
 
     // Move MFT to current bank
-    sendControlChange(CHANNEL_SYSTEM, this.currentBank.getValuei(), BANK_ON);
+    sendControlChangeCached(CHANNEL_SYSTEM, this.currentBank.getValuei(), BANK_ON);
 
     for (int i = 0; i < DEVICE_KNOB_NUM; ++i) {
-      sendControlChange(CHANNEL_ANIMATIONS_AND_BRIGHTNESS, DEVICE_KNOB + i, RGB_ANIMATION_NONE);
-      sendControlChange(CHANNEL_ANIMATIONS_AND_BRIGHTNESS, DEVICE_KNOB + i, INDICATOR_ANIMATION_NONE);
-      sendControlChange(CHANNEL_ANIMATIONS_AND_BRIGHTNESS, DEVICE_KNOB + i, INDICATOR_BRIGHTNESS_MAX);
+      sendControlChangeCached(CHANNEL_ANIMATIONS_AND_BRIGHTNESS, DEVICE_KNOB + i, RGB_ANIMATION_NONE);
+      sendControlChangeCached(CHANNEL_ANIMATIONS_AND_BRIGHTNESS, DEVICE_KNOB + i, INDICATOR_ANIMATION_NONE);
+      sendControlChangeCached(CHANNEL_ANIMATIONS_AND_BRIGHTNESS, DEVICE_KNOB + i, INDICATOR_BRIGHTNESS_MAX);
       // Set indicator (dial) to lowest level
-      sendControlChange(CHANNEL_ROTARY_ENCODER, DEVICE_KNOB+i, 0);
-      sendControlChange(CHANNEL_ANIMATIONS_AND_BRIGHTNESS, DEVICE_KNOB + i, RGB_BRIGHTNESS_OFF);
+      sendControlChangeCached(CHANNEL_ROTARY_ENCODER, DEVICE_KNOB+i, 0);
+      sendControlChangeCached(CHANNEL_ANIMATIONS_AND_BRIGHTNESS, DEVICE_KNOB + i, RGB_BRIGHTNESS_OFF);
     }
   }
 
@@ -1075,7 +1748,7 @@ public class MidiFighterTwister extends LXMidiSurface implements LXMidiSurface.B
 
     // Apply LX-friendly config
     this.lxConfig.initializeLXDefaults();
-    this.lxConfig.sendAll();
+    reportConfigPush(this.lxConfig.sendAll(), "LX");
   }
 
   private void restoreConfig() {
@@ -1083,18 +1756,18 @@ public class MidiFighterTwister extends LXMidiSurface implements LXMidiSurface.B
       this.initialized = false;
 
       for (int i = 0; i < DEVICE_KNOB_NUM; ++i) {
-        sendControlChange(CHANNEL_ANIMATIONS_AND_BRIGHTNESS, DEVICE_KNOB + i, INDICATOR_ANIMATION_NONE);
-        sendControlChange(CHANNEL_ANIMATIONS_AND_BRIGHTNESS, DEVICE_KNOB + i, INDICATOR_BRIGHTNESS_MAX);
-        sendControlChange(CHANNEL_ROTARY_ENCODER, DEVICE_KNOB + i, 0);
-        sendControlChange(CHANNEL_ANIMATIONS_AND_BRIGHTNESS, DEVICE_KNOB + i, RGB_BRIGHTNESS_MAX);
-        sendControlChange(CHANNEL_SWITCH_AND_COLOR, DEVICE_KNOB + i, RGB_USER);
+        sendControlChangeCached(CHANNEL_ANIMATIONS_AND_BRIGHTNESS, DEVICE_KNOB + i, INDICATOR_ANIMATION_NONE);
+        sendControlChangeCached(CHANNEL_ANIMATIONS_AND_BRIGHTNESS, DEVICE_KNOB + i, INDICATOR_BRIGHTNESS_MAX);
+        sendControlChangeCached(CHANNEL_ROTARY_ENCODER, DEVICE_KNOB + i, 0);
+        sendControlChangeCached(CHANNEL_ANIMATIONS_AND_BRIGHTNESS, DEVICE_KNOB + i, RGB_BRIGHTNESS_MAX);
+        sendControlChangeCached(CHANNEL_SWITCH_AND_COLOR, DEVICE_KNOB + i, RGB_USER);
       }
 
       // Move MFT to first bank
-      sendControlChange(CHANNEL_SYSTEM, BANK1, BANK_ON);
+      sendControlChangeCached(CHANNEL_SYSTEM, BANK1, BANK_ON);
 
       // Restore config (for now these are settings friendly to LX generic mapping)
-      this.userConfig.sendAll();
+      reportConfigPush(this.userConfig.sendAll(), "user");
     }
   }
 
@@ -1140,33 +1813,74 @@ public class MidiFighterTwister extends LXMidiSurface implements LXMidiSurface.B
 
   private void unregisterSM() {
     this.isSMregistered = false;
+    SuperMod.current.releaseRemoteMods(this);
     SuperMod.current.removeListener(this.superModListener);
   }
 
+  /*
+   * MIDI input is queued as it arrives and handled at the start of each engine frame
+   */
+
+  private static final int INPUT_QUEUE_SIZE = 256;
+
+  private final MidiEventQueue inputQueue = new MidiEventQueue(INPUT_QUEUE_SIZE);
+
+  private final MidiEventQueue.Handler inputHandler = this::midiEvent;
+
   @Override
   public void noteOnReceived(MidiNoteOn note) {
-    noteReceived(note, true);
+    this.inputQueue.offer(MidiEventQueue.NOTE_ON, note.getChannel(), note.getPitch(), note.getVelocity());
   }
 
   @Override
   public void noteOffReceived(MidiNote note) {
-    noteReceived(note, false);
+    this.inputQueue.offer(MidiEventQueue.NOTE_OFF, note.getChannel(), note.getPitch(), 0);
   }
 
   @Override
   public void controlChangeReceived(MidiControlChange cc) {
-    int channel = cc.getChannel();
-    int number = cc.getCC();
-    int value = cc.getValue();
+    this.inputQueue.offer(MidiEventQueue.CONTROL_CHANGE, cc.getChannel(), cc.getCC(), cc.getValue());
+  }
+
+  private void midiEvent(int type, int channel, int data1, int data2) {
+    switch (type) {
+      case MidiEventQueue.NOTE_ON:
+        noteReceived(channel, data1, true);
+        break;
+      case MidiEventQueue.NOTE_OFF:
+        noteReceived(channel, data1, false);
+        break;
+      case MidiEventQueue.CONTROL_CHANGE:
+        controlChangeReceived(channel, data1, data2);
+        break;
+    }
+  }
+
+  private void drainInput() {
+    this.inputQueue.drain(this.inputHandler);
+    final int dropped = this.inputQueue.takeDropped();
+    if (dropped > 0) {
+      LXMidiEngine.error("MFT input queue full, dropped " + dropped + " events");
+    }
+  }
 
+  private void controlChangeReceived(int channel, int number, int value) {
     switch (channel) {
       case CHANNEL_ROTARY_ENCODER:
         if (number >= DEVICE_KNOB && number <= DEVICE_KNOB_MAX) {
           int iKnob = number - DEVICE_KNOB;
-          if (value == KNOB_INCREMENT || value == KNOB_INCREMENT_FAST || value == KNOB_INCREMENT_VERYFAST) {
-            this.deviceListener.onKnobIncrement(iKnob, true);
-          } else if (value == KNOB_DECREMENT || value == KNOB_DECREMENT_FAST || value == KNOB_DECREMENT_VERYFAST) {
-            this.deviceListener.onKnobIncrement(iKnob, false);
+          if (value == KNOB_INCREMENT) {
+            this.deviceListener.onKnobTick(iKnob, true, 1);
+          } else if (value == KNOB_INCREMENT_FAST) {
+            this.deviceListener.onKnobTick(iKnob, true, KNOB_VELOCITY_FAST);
+          } else if (value == KNOB_INCREMENT_VERYFAST) {
+            this.deviceListener.onKnobTick(iKnob, true, KNOB_VELOCITY_VERYFAST);
+          } else if (value == KNOB_DECREMENT) {
+            this.deviceListener.onKnobTick(iKnob, false, 1);
+          } else if (value == KNOB_DECREMENT_FAST) {
+            this.deviceListener.onKnobTick(iKnob, false, KNOB_VELOCITY_FAST);
+          } else if (value == KNOB_DECREMENT_VERYFAST) {
+            this.deviceListener.onKnobTick(iKnob, false, KNOB_VELOCITY_VERYFAST);
           } else {
             // Knob sent value outside of expected range for relative values.  Possible causes:
             //   1. Knob is configured to send absolute values.
@@ -1175,9 +1889,9 @@ public class MidiFighterTwister extends LXMidiSurface implements LXMidiSurface.B
             LXMidiEngine.error("Received value " + value + " on MFT encoder " + number + ". Confirm Encoder MIDI Type is ENC 3FH/41H and controller is clean.");
             // Assume the direction is correct, keep behavior smooth even on dusty controllers.
             if (value > KNOB_INCREMENT_VERYFAST) {
-              this.deviceListener.onKnobIncrement(iKnob, true);
+              this.deviceListener.onKnobTick(iKnob, true, 1);
             } else if (value < KNOB_DECREMENT_VERYFAST) {
-              this.deviceListener.onKnobIncrement(iKnob, false);
+              this.deviceListener.onKnobTick(iKnob, false, 1);
             }
           }
           return;
@@ -1186,7 +1900,9 @@ public class MidiFighterTwister extends LXMidiSurface implements LXMidiSurface.B
         break;
       case CHANNEL_SWITCH_AND_COLOR:
         if (number >= DEVICE_KNOB && number <= DEVICE_KNOB_MAX) {
-            this.deviceListener.onSwitch(number - DEVICE_KNOB, cc.getNormalized() > 0);
+            // Switch presses change the RGB color on the hardware
+            invalidateCCCache(CHANNEL_SWITCH_AND_COLOR, number);
+            this.deviceListener.onSwitch(number - DEVICE_KNOB, value > 0);
             return;
           }
         LXMidiEngine.error("MFT Unknown Switch: " + number);
@@ -1262,8 +1978,8 @@ public class MidiFighterTwister extends LXMidiSurface implements LXMidiSurface.B
     }
   }
 
-  private void noteReceived(MidiNote note, boolean on) {
-    LXMidiEngine.error("MFT UNMAPPED Note: " + note + " " + on);
+  private void noteReceived(int channel, int pitch, boolean on) {
+    LXMidiEngine.error("MFT UNMAPPED Note: channel " + channel + " pitch " + pitch + " " + on);
   }
 
   private boolean isAux() {
@@ -1287,11 +2003,13 @@ public class MidiFighterTwister extends LXMidiSurface implements LXMidiSurface.B
 
   @Override
   public void dispose() {
+    this.lx.engine.removeLoopTask(this.loopTask);
     this.deviceListener.dispose();
     restoreConfig();
     if (this.isSMregistered) {
       unregisterSM();
     }
+    this.outputQueue.dispose();
     super.dispose();
   }
 }
@@ -0,0 +1,405 @@
+/**
+ * Copyright 2024- Justin Belcher
+ *
+ * @author Justin K. Belcher <justin@jkb.studio>
+ */
+
+package studio.jkb.supermod;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes MIDI output for one surface from its own virtual thread, so the
+ * engine thread never waits on the MIDI driver.
+ *
+ * Messages are written in the order they were queued. Sysex is copied into
+ * the queue, so callers may reuse their buffers as soon as a call returns.
+ * A fence holds back everything queued after it until the messages before
+ * it have been written, plus an optional delay. A fence can carry a future
+ * that is completed on the writer thread once it has passed.
+ *
+ * Output can be paced to a number of messages per millisecond. If writes to
+ * the driver stall, the pace slows down and then recovers as writes succeed.
+ *
+ * Single producer: all messages must be queued from the same thread.
+ */
+public final class MidiOutputQueue {
+
+  /**
+   * Receives messages on the writer thread
+   */
+  public interface Sink {
+    public void noteOn(int channel, int note, int velocity);
+    public void controlChange(int channel, int cc, int value);
+    public void sysex(byte[] sysex);
+  }
+
+  private static final int NOTE_ON = 0;
+  private static final int CONTROL_CHANGE = 1;
+  private static final int SYSEX = 2;
+  private static final int FENCE = 3;
+
+  private static final int TYPE_SHIFT = 28;
+  private static final int PAYLOAD_MASK = (1 << TYPE_SHIFT) - 1;
+
+  // Disposing skips pacing and fence delays, so the remaining writes are quick
+  private static final long DISPOSE_TIMEOUT_MS = 50;
+
+  // Number of messages that can be written back to back before pacing applies
+  private static final double PACING_BURST = 8;
+
+  // Approximate bytes per message, for charging sysex against the pace
+  private static final int BYTES_PER_MESSAGE = 3;
+
+  // A write that takes longer than this is considered a stall
+  private static final long STALL_NS = 2_000_000;
+
+  private static final double ADAPTIVE_MIN = 0.125;
+  private static final double ADAPTIVE_RECOVERY = 0.01;
+
+  private final String name;
+  private final Sink sink;
+
+  // Packed messages
+  private final int[] events;
+  private final int eventMask;
+  private volatile int eventHead = 0;
+  private volatile int eventTail = 0;
+
+  // Futures for fences, at the same index as their FENCE events
+  private final CompletableFuture<?>[] completions;
+
+  // Sysex bytes, in the same order as their SYSEX events
+  private final byte[] sysexData;
+  private final int sysexMask;
+  private volatile int sysexHead = 0;
+  private volatile int sysexTail = 0;
+
+  // Writer-side buffers, one per sysex length
+  private final byte[][] sysexBuffers;
+
+  // Messages per millisecond, 0 for unpaced
+  private volatile double rate = 0;
+
+  // Writer-side pacing state
+  private double tokens = PACING_BURST;
+  private long lastRefillNanos = System.nanoTime();
+  private double adaptiveFactor = 1;
+  // Counted on the writer thread, taken on the engine thread
+  private final AtomicInteger numStalls = new AtomicInteger();
+
+  private volatile int maxDepth = 0;
+
+  private volatile boolean running = true;
+  private volatile boolean closed = false;
+  private volatile boolean waiting = false;
+  private volatile int dropped = 0;
+  private boolean loggedError = false;
+
+  private final Thread writer;
+
+  /**
+   * @param name Name of the writer thread
+   * @param sink Destination for messages, called on the writer thread
+   * @param capacity Maximum number of pending messages, rounded up to a power of two
+   * @param sysexCapacity Maximum number of pending sysex bytes, rounded up to a power of two
+   */
+  public MidiOutputQueue(String name, Sink sink, int capacity, int sysexCapacity) {
+    this.name = name;
+    this.sink = sink;
+    final int size = powerOfTwo(capacity);
+    this.events = new int[size];
+    this.eventMask = size - 1;
+    this.completions = new CompletableFuture<?>[size];
+    final int sysexSize = powerOfTwo(sysexCapacity);
+    this.sysexData = new byte[sysexSize];
+    this.sysexMask = sysexSize - 1;
+    this.sysexBuffers = new byte[sysexSize + 1][];
+    this.writer = Thread.ofVirtual().name(name).start(this::run);
+  }
+
+  private static int powerOfTwo(int capacity) {
+    return Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+  }
+
+  /*
+   * Producer
+   */
+
+  public boolean noteOn(int channel, int note, int velocity) {
+    return offer(NOTE_ON, pack(channel, note, velocity));
+  }
+
+  public boolean controlChange(int channel, int cc, int value) {
+    return offer(CONTROL_CHANGE, pack(channel, cc, value));
+  }
+
+  /**
+   * Queue a sysex message. The bytes are copied before returning.
+   */
+  public boolean sysex(byte[] sysex) {
+    final int length = sysex.length;
+    final int tail = this.sysexTail;
+    if (length > this.sysexMask + 1 - (tail - this.sysexHead) || !hasEventSpace()) {
+      ++this.dropped;
+      return false;
+    }
+    for (int i = 0; i < length; ++i) {
+      this.sysexData[(tail + i) & this.sysexMask] = sysex[i];
+    }
+    this.sysexTail = tail + length;
+    return offer(SYSEX, length);
+  }
+
+  /**
+   * Queue a fence and return a future that is completed on the writer thread
+   * once the fence has passed. If the queue is full the future is completed
+   * exceptionally right away.
+   */
+  public CompletableFuture<Void> fenceFuture(int delayMs) {
+    final CompletableFuture<Void> future = new CompletableFuture<Void>();
+    if (!hasEventSpace()) {
+      ++this.dropped;
+      future.completeExceptionally(new IllegalStateException(this.name + " queue is full"));
+      return future;
+    }
+    // Published along with the event by the tail write in offer()
+    this.completions[this.eventTail & this.eventMask] = future;
+    offer(FENCE, delayMs & PAYLOAD_MASK);
+    return future;
+  }
+
+  /**
+   * Whether a group of messages would fit in the queue right now. Lets a caller
+   * queue all parts of a multi-part transfer or none of them.
+   */
+  public boolean hasRoom(int numMessages, int numSysexBytes) {
+    return
+      numMessages <= this.eventMask + 1 - (this.eventTail - this.eventHead) &&
+      numSysexBytes <= this.sysexMask + 1 - (this.sysexTail - this.sysexHead);
+  }
+
+  private static int pack(int channel, int data1, int data2) {
+    return ((channel & 0xf) << 14) | ((data1 & 0x7f) << 7) | (data2 & 0x7f);
+  }
+
+  private boolean hasEventSpace() {
+    return this.eventTail - this.eventHead <= this.eventMask;
+  }
+
+  private boolean offer(int type, int payload) {
+    if (!hasEventSpace()) {
+      ++this.dropped;
+      return false;
+    }
+    final int tail = this.eventTail;
+    this.events[tail & this.eventMask] = (type << TYPE_SHIFT) | payload;
+    this.eventTail = tail + 1;
+    final int depth = tail + 1 - this.eventHead;
+    if (depth > this.maxDepth) {
+      this.maxDepth = depth;
+    }
+    if (this.waiting) {
+      LockSupport.unpark(this.writer);
+    }
+    return true;
+  }
+
+  /**
+   * Number of messages queued but not yet written
+   */
+  public int size() {
+    return this.eventTail - this.eventHead;
+  }
+
+  /**
+   * Largest number of pending messages since the last call.
+   * Resets the count.
+   */
+  public int takeMaxDepth() {
+    final int maxDepth = this.maxDepth;
+    this.maxDepth = 0;
+    return maxDepth;
+  }
+
+  /**
+   * Limit output to a number of messages per millisecond, or 0 for no limit
+   */
+  public MidiOutputQueue setRate(double messagesPerMs) {
+    this.rate = Math.max(0, messagesPerMs);
+    return this;
+  }
+
+  /**
+   * Number of writes that stalled since the last call, each of which slowed
+   * the pace. Resets the count.
+   */
+  public int takeStalls() {
+    return this.numStalls.getAndSet(0);
+  }
+
+  /**
+   * Number of messages dropped because the queue was full.
+   * Resets the count.
+   */
+  public int takeDropped() {
+    final int dropped = this.dropped;
+    this.dropped = 0;
+    return dropped;
+  }
+
+  /**
+   * Stop the writer. Messages already queued are written without pacing or
+   * fence delays, for a short time at most. Anything left after that is
+   * dropped and no further write is started, though a write already inside
+   * the sink may still finish after this returns. Fence futures that have
+   * not passed are completed exceptionally.
+   */
+  public void dispose() {
+    this.running = false;
+    // Wakes the writer from a fence delay or pacing wait
+    this.writer.interrupt();
+    try {
+      if (!this.writer.join(Duration.ofMillis(DISPOSE_TIMEOUT_MS))) {
+        LOG.warning(this.name + " dropped " + size() + " messages that were not written within " + DISPOSE_TIMEOUT_MS + "ms");
+      }
+    } catch (InterruptedException x) {
+      Thread.currentThread().interrupt();
+    }
+    this.closed = true;
+
+    final IllegalStateException disposed = new IllegalStateException(this.name + " was disposed");
+    for (CompletableFuture<?> future : this.completions) {
+      if (future != null) {
+        future.completeExceptionally(disposed);
+      }
+    }
+  }
+
+  /*
+   * Writer
+   */
+
+  private void run() {
+    while (true) {
+      final int head = this.eventHead;
+      if (this.closed) {
+        return;
+      }
+      if (head == this.eventTail) {
+        if (!this.running) {
+          return;
+        }
+        // Announce the wait, then check again so a message queued in between isn't missed
+        this.waiting = true;
+        if (head == this.eventTail && this.running) {
+          LockSupport.park(this);
+        }
+        this.waiting = false;
+        continue;
+      }
+
+      final int event = this.events[head & this.eventMask];
+      final int type = event >>> TYPE_SHIFT;
+      final int payload = event & PAYLOAD_MASK;
+      if (type != FENCE) {
+        pace(type == SYSEX ? Math.max(1, payload / BYTES_PER_MESSAGE) : 1);
+      }
+      final long start = System.nanoTime();
+      try {
+        switch (type) {
+          case NOTE_ON:
+            this.sink.noteOn(payload >>> 14, (payload >>> 7) & 0x7f, payload & 0x7f);
+            break;
+          case CONTROL_CHANGE:
+            this.sink.controlChange(payload >>> 14, (payload >>> 7) & 0x7f, payload & 0x7f);
+            break;
+          case SYSEX:
+            writeSysex(payload);
+            break;
+          case FENCE:
+            if (payload > 0 && this.running) {
+              Thread.sleep(payload);
+            }
+            break;
+        }
+      } catch (InterruptedException x) {
+        // Disposing, skip the rest of the delay
+      } catch (Exception x) {
+        if (!this.loggedError) {
+          this.loggedError = true;
+          LOG.error(x, this.name + " failed to write MIDI");
+        }
+      }
+      if (type != FENCE) {
+        adapt(System.nanoTime() - start);
+      } else {
+        complete(head);
+      }
+      this.eventHead = head + 1;
+    }
+  }
+
+  /**
+   * Wait until there is budget to write a message of the given cost
+   */
+  private void pace(int cost) {
+    final double rate = this.rate * this.adaptiveFactor;
+    if (rate <= 0 || !this.running) {
+      return;
+    }
+    // Tokens never exceed the burst, so a message that costs more only waits for a full burst
+    final double required = Math.min(cost, PACING_BURST);
+    while (true) {
+      final long now = System.nanoTime();
+      this.tokens = Math.min(PACING_BURST, this.tokens + (now - this.lastRefillNanos) / 1e6 * rate);
+      this.lastRefillNanos = now;
+      if (this.tokens >= required || !this.running) {
+        break;
+      }
+      LockSupport.parkNanos((long) ((required - this.tokens) / rate * 1e6));
+    }
+    // Charge the full cost. A large sysex puts the balance into debt,
+    // which the messages after it wait out.
+    this.tokens -= cost;
+  }
+
+  /**
+   * Slow down after a stalled write, recover gradually otherwise
+   */
+  private void adapt(long elapsedNanos) {
+    if (elapsedNanos > STALL_NS) {
+      this.adaptiveFactor = Math.max(ADAPTIVE_MIN, this.adaptiveFactor * .5);
+      this.numStalls.incrementAndGet();
+    } else if (this.adaptiveFactor < 1) {
+      this.adaptiveFactor = Math.min(1, this.adaptiveFactor + ADAPTIVE_RECOVERY);
+    }
+  }
+
+  private void complete(int head) {
+    final CompletableFuture<?> future = this.completions[head & this.eventMask];
+    if (future != null) {
+      // Cleared before the head moves on, so the slot is free for the producer
+      this.completions[head & this.eventMask] = null;
+      future.complete(null);
+    }
+  }
+
+  private void writeSysex(int length) {
+    byte[] sysex = this.sysexBuffers[length];
+    if (sysex == null) {
+      sysex = new byte[length];
+      this.sysexBuffers[length] = sysex;
+    }
+    final int head = this.sysexHead;
+    for (int i = 0; i < length; ++i) {
+      sysex[i] = this.sysexData[(head + i) & this.sysexMask];
+    }
+    this.sysexHead = head + length;
+    this.sink.sysex(sysex);
+  }
+
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright 2024- Justin Belcher
+ *
+ * @author Justin K. Belcher <justin@jkb.studio>
+ */
+
+package studio.jkb.supermod;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import heronarts.lx.parameter.LXParameter;
+
+/**
+ * Identity-keyed lookup from a parameter to the surface slots it occupies.
+ * A parameter can be on more than one slot, for example when a device lists
+ * the same remote control twice.
+ *
+ * Built when a surface registers its knobs, then used to dispatch parameter
+ * listener callbacks without scanning every slot.
+ */
+public class ParameterSlotIndex {
+
+  /**
+   * Slots occupied by a single parameter
+   */
+  public static class Slots {
+
+    private int[] slots = new int[1];
+    private int size = 0;
+
+    private Slots() { }
+
+    public int size() {
+      return this.size;
+    }
+
+    public int get(int i) {
+      return this.slots[i];
+    }
+
+    private void add(int slot) {
+      if (this.size == this.slots.length) {
+        this.slots = Arrays.copyOf(this.slots, this.size * 2);
+      }
+      this.slots[this.size++] = slot;
+    }
+  }
+
+  private final Map<LXParameter, Slots> index = new IdentityHashMap<LXParameter, Slots>();
+
+  /**
+   * Add a parameter at a slot.
+   *
+   * @return true if this is the first slot for the parameter,
+   *         meaning the caller should start listening to it
+   */
+  public boolean add(LXParameter parameter, int slot) {
+    Slots slots = this.index.get(parameter);
+    final boolean isNew = slots == null;
+    if (isNew) {
+      slots = new Slots();
+      this.index.put(parameter, slots);
+    }
+    slots.add(slot);
+    return isNew;
+  }
+
+  /**
+   * Retrieve the slots for a parameter, or null if it is not in the index
+   */
+  public Slots get(LXParameter parameter) {
+    return this.index.get(parameter);
+  }
+
+  /**
+   * Each unique parameter in the index
+   */
+  public Set<LXParameter> parameters() {
+    return this.index.keySet();
+  }
+
+  public void clear() {
+    this.index.clear();
+  }
+
+}
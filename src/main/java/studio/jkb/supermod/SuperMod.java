@@ -8,17 +8,29 @@ package studio.jkb.supermod;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.Map.Entry;
+import java.util.Set;
+import java.util.WeakHashMap;
 
 import heronarts.lx.LX;
 import heronarts.lx.LXComponent;
 import heronarts.lx.LXDeviceComponent;
+import heronarts.lx.LXLoopTask;
 import heronarts.lx.LXPlugin;
 import heronarts.lx.Tempo;
+import heronarts.lx.command.LXCommand;
+import heronarts.lx.effect.LXEffect;
+import heronarts.lx.mixer.LXAbstractChannel;
+import heronarts.lx.mixer.LXBus;
+import heronarts.lx.mixer.LXChannel;
+import heronarts.lx.mixer.LXMixerEngine;
 import heronarts.lx.modulation.LXCompoundModulation;
 import heronarts.lx.modulation.LXCompoundModulation.Target;
 import heronarts.lx.modulation.LXModulationEngine;
@@ -34,6 +46,7 @@ import heronarts.lx.parameter.LXListenableNormalizedParameter;
 import heronarts.lx.parameter.LXNormalizedParameter;
 import heronarts.lx.parameter.LXParameter;
 import heronarts.lx.parameter.LXParameterListener;
+import heronarts.lx.pattern.LXPattern;
 import heronarts.lx.studio.LXStudio;
 import heronarts.lx.studio.LXStudio.UI;
 import heronarts.lx.utils.LXUtils;
@@ -103,15 +116,28 @@ public class SuperMod extends LXComponent implements LXStudio.Plugin {
 
   final ArrayList<EnumParameter<Tempo.Division>> tempos = new ArrayList<>(Arrays.asList(tempo1, tempo2, tempo3, tempo4, tempo5, tempo6, tempo7, tempo8)); 
 
+  /**
+   * Maximum number of global template modulators, labeled SM_1 to SM_64.
+   * The APC shows them a bank of columns at a time. Only the first
+   * tempos.size() templates have a device-level default, templates beyond
+   * the tempos are only available while their global modulator exists.
+   */
+  public static final int MAX_TEMPLATES = 64;
+
   /**
    * All system global modulators.  We are listening to their labels.
    */
-  private final List<LXModulator> globalModulators = new ArrayList<LXModulator>();
+  private final Set<LXModulator> globalModulators = Collections.newSetFromMap(new IdentityHashMap<LXModulator, Boolean>());
+
+  /**
+   * Global modulators that are SuperMod targets, indexed by template id - 1
+   */
+  private final LXModulator[] activeGlobalModulators = new LXModulator[MAX_TEMPLATES];
 
   /**
-   * Global modulators that are SuperMod targets
+   * Reverse lookup of template index for each active global modulator
    */
-  private final LXModulator[] activeGlobalModulators = new LXModulator[8];
+  private final Map<LXModulator, Integer> templateIndices = new IdentityHashMap<LXModulator, Integer>();
 
   private final LXParameterListener modulatorLabelListener = new LXParameterListener() {
     @Override
@@ -156,51 +182,72 @@ public class SuperMod extends LXComponent implements LXStudio.Plugin {
   }
 
   private void unlistenGlobalModulators() {
-    for (int i = this.globalModulators.size() - 1; i >= 0; i--) {
-      unlistenGlobalModulator(this.globalModulators.get(i));
+    for (LXModulator modulator : new ArrayList<LXModulator>(this.globalModulators)) {
+      unlistenGlobalModulator(modulator);
+    }
+    Arrays.fill(this.activeGlobalModulators, null);
+    this.templateIndices.clear();
+  }
+
+  /**
+   * Parse the template id from a label of the form SM_<id>
+   *
+   * @return Template id from 1 to MAX_TEMPLATES, or -1 if not a template label
+   */
+  private static int parseTemplateId(String label) {
+    final int length = label.length();
+    final int start = SUPERMOD_PREFIX.length();
+    if (!label.startsWith(SUPERMOD_PREFIX) || length == start || length - start > 9) {
+      return -1;
     }
-    for (int i = 0; i < this.activeGlobalModulators.length; i++) {
-      this.activeGlobalModulators[i] = null;
+    int id = 0;
+    for (int i = start; i < length; i++) {
+      final char c = label.charAt(i);
+      if (c < '0' || c > '9') {
+        return -1;
+      }
+      id = id * 10 + (c - '0');
     }
+    return (id >= 1 && id <= MAX_TEMPLATES) ? id : -1;
   }
 
   private void checkModulatorLabel(LXModulator modulator) {
-    String l = modulator.getLabel(); 
-    if (l.startsWith(SUPERMOD_PREFIX)) {
-      l = l.substring(SUPERMOD_PREFIX.length());
-      try {
-        int position = Integer.parseInt(l);
-        if (position >= 1 && position <= 8) {
-          this.activeGlobalModulators[position - 1] = modulator;
-          debug("Found global modulator " + position);
-
-          // Remove from any previous position
-          for (int i = 0; i < this.activeGlobalModulators.length; i++) {
-            if (i != position - 1 && this.activeGlobalModulators[i] == modulator) {
-              this.activeGlobalModulators[i] = null;
-              debug("Removed global modulator " + (i + 1));
-            }
-          }
-          notifyTemplatesChanged();
-          return;
-        }
-      } catch (NumberFormatException ex) {
-        // Ignore invalid names
-      }
+    final int position = parseTemplateId(modulator.getLabel());
+    if (position < 0) {
+      // Remove it from global, in case label was valid and now is not
+      removeGlobalTargetModulator(modulator);
+      return;
     }
-    // Remove it from global, in case label was valid and now is not
-    removeGlobalTargetModulator(modulator);
+
+    final int index = position - 1;
+    final Integer previous = this.templateIndices.get(modulator);
+    if (previous != null && previous == index) {
+      return;
+    }
+
+    // Remove from any previous position
+    if (previous != null) {
+      this.activeGlobalModulators[previous] = null;
+      debug("Removed global modulator " + (previous + 1));
+    }
+    // Last one to claim a position wins it
+    final LXModulator displaced = this.activeGlobalModulators[index];
+    if (displaced != null) {
+      this.templateIndices.remove(displaced);
+    }
+    this.activeGlobalModulators[index] = modulator;
+    this.templateIndices.put(modulator, index);
+    debug("Found global modulator " + position);
+    notifyTemplatesChanged();
   }
 
   private void removeGlobalTargetModulator(LXModulator modulator) {
-    for (int i = 0; i < this.activeGlobalModulators.length; i++) {
-      if (this.activeGlobalModulators[i] == modulator) {
-        this.activeGlobalModulators[i] = null;
-        debug("Removed global modulator " + (i + 1));
-        notifyTemplatesChanged();
-        return;
-      }
-    }    
+    final Integer index = this.templateIndices.remove(modulator);
+    if (index != null) {
+      this.activeGlobalModulators[index] = null;
+      debug("Removed global modulator " + (index + 1));
+      notifyTemplatesChanged();
+    }
   }
 
   public SuperMod(LX lx) {
@@ -238,6 +285,7 @@ public class SuperMod extends LXComponent implements LXStudio.Plugin {
       throw new IllegalStateException("Cannot add duplicate SuperMod.ModulatorSource " + listener.getClass().getName());
     }
     this.modulatorSources.add(listener);
+    resetPools();
     return this;
   }
 
@@ -246,13 +294,23 @@ public class SuperMod extends LXComponent implements LXStudio.Plugin {
       LX.error(new Exception(), "Trying to remove unregistered SuperMod.ModulatorSource " + listener.getClass().getName());
     }
     this.modulatorSources.remove(listener);
+    resetPools();
     return this;
   }
 
-  private LXModulator createModulator(String label, int row, int col) {
+  /**
+   * Whether a modulation can be created for a template, either through its
+   * global modulator or a device-level modulator with the template's tempo.
+   */
+  private boolean canCreateModulation(int templateIndex) {
+    return (templateIndex >= 0 && templateIndex < this.tempos.size()) ||
+      isTemplateGlobal(templateIndex);
+  }
+
+  private LXModulator createModulator(String label, int templateIndex, int templateVariation) {
     LXModulator modulator;
     for (ModulatorSource listener : this.modulatorSources) {
-      modulator = listener.createModulator(label, row, col);
+      modulator = listener.createModulator(label, templateIndex, templateVariation);
       if (modulator != null) {
         return modulator;
       }
@@ -280,6 +338,201 @@ public class SuperMod extends LXComponent implements LXStudio.Plugin {
     return lfo;
   }
 
+  /*
+   * Modulator pool
+   */
+
+  /**
+   * How long a template pool may go unused before it is trimmed to one spare
+   */
+  private static final long POOL_IDLE_MS = 30000;
+
+  /**
+   * Variations of each template, one per waveshape of the default modulator
+   */
+  private static final int NUM_TEMPLATE_VARIATIONS = 4;
+
+  /**
+   * Most spares kept ready for one template and variation
+   */
+  private static final int POOL_MAX_SPARES = 4;
+
+  /**
+   * Detached modulators for one template and variation, built ahead of time
+   * so a knob tick on an empty parameter doesn't have to construct one.
+   * Spares are not in any modulation engine, so they are never saved.
+   */
+  private class TemplatePool {
+    private final int templateIndex;
+    private final int templateVariation;
+    private final List<LXModulator> spares = new ArrayList<LXModulator>();
+
+    /**
+     * Number of spares to keep ready. Raised by each clear, since a
+     * modulation that was cleared is likely to be wanted again.
+     */
+    private int target = 1;
+    private long lastUsed;
+
+    private TemplatePool(int templateIndex, int templateVariation) {
+      this.templateIndex = templateIndex;
+      this.templateVariation = templateVariation;
+    }
+
+    /**
+     * Whether a spare should be built. Templates with a global
+     * modulator never use device-level modulators.
+     */
+    private boolean needsSpare() {
+      return this.spares.size() < this.target &&
+        !isTemplateGlobal(this.templateIndex) &&
+        canCreateModulation(this.templateIndex);
+    }
+
+    private void buildSpare() {
+      final LXModulator spare = createModulator(SUPERMOD_PREFIX, this.templateIndex, this.templateVariation);
+      spare.running.setValue(false);
+      this.spares.add(spare);
+    }
+
+    private LXModulator takeSpare() {
+      return this.spares.isEmpty() ? null : this.spares.remove(this.spares.size() - 1);
+    }
+
+    private void dispose() {
+      for (LXModulator spare : this.spares) {
+        spare.dispose();
+      }
+      this.spares.clear();
+    }
+  }
+
+  private static int templateKey(int templateIndex, int templateVariation) {
+    return (templateIndex << 8) | (templateVariation & 0xff);
+  }
+
+  /**
+   * Pools by template key. Every tempo template has a pool for each variation,
+   * other keys get one on first use.
+   */
+  private final Map<Integer, TemplatePool> pools = new HashMap<Integer, TemplatePool>();
+
+  /**
+   * Template key of each device-level modulator checked out from a pool.
+   * Weak keys, entries go away with modulators removed by LX or the user.
+   */
+  private final Map<LXModulator, Integer> modulatorTemplates = new WeakHashMap<LXModulator, Integer>();
+
+  private final LXLoopTask poolTask = (deltaMs) -> {
+    onPoolLoop();
+  };
+
+  private void registerPools() {
+    for (int templateIndex = 0; templateIndex < this.tempos.size(); ++templateIndex) {
+      for (int templateVariation = 0; templateVariation < NUM_TEMPLATE_VARIATIONS; ++templateVariation) {
+        getPool(templateIndex, templateVariation);
+      }
+    }
+  }
+
+  private void onPoolLoop() {
+    // Idle pools keep a single spare
+    final long now = System.currentTimeMillis();
+    for (TemplatePool pool : this.pools.values()) {
+      if (pool.target > 1 && now - pool.lastUsed > POOL_IDLE_MS) {
+        pool.target = 1;
+        while (pool.spares.size() > 1) {
+          pool.takeSpare().dispose();
+        }
+      }
+    }
+
+    // Build at most one spare per frame, the selected template first
+    final TemplatePool selected = this.pools.get(templateKey(this.templateIndex, this.templateVariation));
+    if (selected != null && selected.needsSpare()) {
+      selected.buildSpare();
+      return;
+    }
+    for (TemplatePool pool : this.pools.values()) {
+      if (pool.needsSpare()) {
+        pool.buildSpare();
+        break;
+      }
+    }
+  }
+
+  private TemplatePool getPool(int templateIndex, int templateVariation) {
+    final int key = templateKey(templateIndex, templateVariation);
+    TemplatePool pool = this.pools.get(key);
+    if (pool == null) {
+      pool = new TemplatePool(templateIndex, templateVariation);
+      this.pools.put(key, pool);
+    }
+    pool.lastUsed = System.currentTimeMillis();
+    return pool;
+  }
+
+  /**
+   * Retrieve a running, detached modulator for a template, taking
+   * a spare from its pool before creating a new one.
+   */
+  private LXModulator checkoutModulator(String label, int templateIndex, int templateVariation) {
+    LXModulator modulator = getPool(templateIndex, templateVariation).takeSpare();
+    if (modulator != null) {
+      // Apply settings that may have changed since the spare was built
+      modulator.label.setValue(label);
+      if (modulator instanceof VariableLFO) {
+        ((VariableLFO) modulator).tempoDivision.setValue(this.tempos.get(templateIndex).getEnum());
+      }
+    } else {
+      modulator = createModulator(label, templateIndex, templateVariation);
+    }
+    modulator.running.setValue(true);
+    this.modulatorTemplates.put(modulator, templateKey(templateIndex, templateVariation));
+    return modulator;
+  }
+
+  /**
+   * A checked out modulator was removed, keep another spare ready for its template
+   */
+  private void releaseModulator(LXModulator modulator) {
+    final Integer key = this.modulatorTemplates.remove(modulator);
+    if (key != null) {
+      final TemplatePool pool = getPool(key >> 8, key & 0xff);
+      pool.target = Math.min(pool.target + 1, POOL_MAX_SPARES);
+    }
+  }
+
+  /**
+   * Dispose all spares, they are rebuilt over the following frames
+   */
+  private void resetPools() {
+    for (TemplatePool pool : this.pools.values()) {
+      pool.dispose();
+    }
+  }
+
+  private void disposePools() {
+    resetPools();
+    this.pools.clear();
+  }
+
+  /**
+   * The template and variation a modulator was created from, as {index, variation},
+   * or the current selection if it was not created by SuperMod.
+   */
+  private int[] getModulatorTemplate(LXModulator modulator) {
+    final Integer key = this.modulatorTemplates.get(modulator);
+    if (key != null) {
+      return new int[] { key >> 8, key & 0xff };
+    }
+    final Integer globalIndex = this.templateIndices.get(modulator);
+    if (globalIndex != null) {
+      return new int[] { globalIndex, this.templateVariation };
+    }
+    return new int[] { this.templateIndex, this.templateVariation };
+  }
+
   /*
    * LX Plugin
    */
@@ -291,6 +544,14 @@ public class SuperMod extends LXComponent implements LXStudio.Plugin {
     this.lx.engine.midi.registerSurface(MidiFighterTwister.class);
 
     lx.engine.modulation.addListener(this.globalModulationListener);
+    registerPools();
+    lx.engine.addLoopTask(this.poolTask);
+
+    lx.engine.mixer.addListener(this.mixerListener);
+    for (LXAbstractChannel channel : lx.engine.mixer.channels) {
+      listenBus(channel);
+    }
+    listenBus(lx.engine.mixer.masterBus);
   }
 
   @Override
@@ -325,6 +586,74 @@ public class SuperMod extends LXComponent implements LXStudio.Plugin {
       public static final double MOD_LEVEL_EXPONENT = 1;
 
       public final Target target;
+
+      /**
+       * One modulation on the target, with listeners on its range
+       * and on the label of its source modulator.
+       */
+      private class Link {
+        private final LXCompoundModulation modulation;
+
+        /**
+         * Cached classification of the modulation source, kept
+         * current by listening to the source modulator's label.
+         */
+        private boolean isSuperModulation;
+
+        private final LXParameterListener rangeListener = (p) -> {
+          notifyChanged();
+        };
+
+        private final LXParameterListener sourceLabelListener = (p) -> {
+          onSourceLabelChanged(this);
+        };
+
+        private Link(LXCompoundModulation modulation) {
+          this.modulation = modulation;
+          this.isSuperModulation = isSMmodulation(modulation);
+          modulation.range.addListener(this.rangeListener);
+          if (modulation.source instanceof LXModulator) {
+            ((LXModulator) modulation.source).label.addListener(this.sourceLabelListener);
+          }
+        }
+
+        private void unregister() {
+          this.modulation.range.removeListener(this.rangeListener);
+          unregisterSourceLabel();
+        }
+
+        private void unregisterSourceLabel() {
+          if (this.modulation.source instanceof LXModulator) {
+            ((LXModulator) this.modulation.source).label.removeListener(this.sourceLabelListener);
+          }
+        }
+      }
+
+      /**
+       * Every modulation on the target, in the order they were added
+       */
+      private final List<Link> links = new ArrayList<Link>();
+
+      /**
+       * Number of links whose source is a SuperMod modulator
+       */
+      private int numSuperModulations = 0;
+
+      /**
+       * The modulation controlled by this parameter. Defaults to the
+       * first SuperMod modulation, otherwise the first modulation.
+       */
+      private Link selected = null;
+
+      /**
+       * True if the selection was made by the user and should not
+       * be replaced by the default choice.
+       */
+      private boolean isSelectionPinned = false;
+
+      /**
+       * Convenience for the currently selected modulation
+       */
       private LXCompoundModulation modulation;
 
       public ModParameter(Target target) {
@@ -336,65 +665,149 @@ public class SuperMod extends LXComponent implements LXStudio.Plugin {
         this.target.addModulationListener(this);
 
         // Link to existing modulations
-        List<LXCompoundModulation> modulations = this.target.getModulations();
-        if (modulations.size() > 0) {
-          setModulation(modulations.get(0));
+        for (LXCompoundModulation modulation : this.target.getModulations()) {
+          addLink(modulation);
         }
-        this.target.getModulations();
+        updateSelection();
       }
 
-
       @Override
       public void modulationAdded(Target parameter, LXCompoundModulation modulation) {
-        setModulation(modulation);
+        addLink(modulation);
+        updateSelection();
+        notifyChanged();
       }
 
       @Override
       public void modulationRemoved(Target parameter, LXCompoundModulation modulation) {
-        removeModulation(modulation);
+        for (int i = 0; i < this.links.size(); i++) {
+          final Link link = this.links.get(i);
+          if (link.modulation == modulation) {
+            this.links.remove(i);
+            link.unregister();
+            if (link.isSuperModulation) {
+              --this.numSuperModulations;
+            }
+            if (link == this.selected) {
+              this.isSelectionPinned = false;
+            }
+            updateSelection();
+            notifyChanged();
+            return;
+          }
+        }
       }
 
-      private void setModulation(LXCompoundModulation modulation) {
-        // TODO: Handle multiple modulations
-        if (this.modulation != null) {
-          return;
+      private void addLink(LXCompoundModulation modulation) {
+        final Link link = new Link(modulation);
+        this.links.add(link);
+        if (link.isSuperModulation) {
+          ++this.numSuperModulations;
         }
+      }
 
-        this.modulation = modulation;
-        registerModulation(modulation);
-        bang();
+      private void onSourceLabelChanged(Link link) {
+        final boolean isSuperModulation = isSMmodulation(link.modulation);
+        if (link.isSuperModulation != isSuperModulation) {
+          link.isSuperModulation = isSuperModulation;
+          this.numSuperModulations += isSuperModulation ? 1 : -1;
+          updateSelection();
+          notifyChanged();
+        }
       }
 
-      private void removeModulation(LXCompoundModulation modulation) {
-        // TODO: Handle multiple modulations
-        if (modulation != this.modulation) {
-          return;
+      private void updateSelection() {
+        if (!this.isSelectionPinned || this.selected == null) {
+          Link selected = null;
+          for (Link link : this.links) {
+            if (link.isSuperModulation) {
+              selected = link;
+              break;
+            }
+            if (selected == null) {
+              selected = link;
+            }
+          }
+          this.selected = selected;
+          this.isSelectionPinned = false;
         }
+        this.modulation = (this.selected != null) ? this.selected.modulation : null;
+      }
 
-        unregisterModulation(modulation);
-        this.modulation = null;
-        bang();
+      /**
+       * Number of modulations on the target
+       */
+      public int getNumModulations() {
+        return this.links.size();
+      }
+
+      public LXCompoundModulation getModulation(int index) {
+        return this.links.get(index).modulation;
+      }
+
+      /**
+       * The modulation adjusted by this parameter, or null if there are none
+       */
+      public LXCompoundModulation getSelectedModulation() {
+        return this.modulation;
+      }
+
+      /**
+       * Select which modulation on the target is adjusted by this parameter.
+       * Pass null to return to the default of the first SuperMod modulation.
+       */
+      public ModParameter setSelectedModulation(LXCompoundModulation modulation) {
+        Link selected = null;
+        for (Link link : this.links) {
+          if (link.modulation == modulation) {
+            selected = link;
+            break;
+          }
+        }
+        if (modulation != null && selected == null) {
+          throw new IllegalArgumentException("Modulation is not on target " + this.target.getLabel());
+        }
+        this.selected = selected;
+        this.isSelectionPinned = selected != null;
+        updateSelection();
+        notifyChanged();
+        return this;
       }
 
-      private LXParameterListener rangeListener = (p) -> {
-        bang();
-      };
+      /**
+       * Select the modulation after the current one, wrapping around
+       *
+       * @return true if the selection changed
+       */
+      public boolean selectNextModulation() {
+        if (this.links.size() < 2) {
+          return false;
+        }
+        final int next = (this.links.indexOf(this.selected) + 1) % this.links.size();
+        setSelectedModulation(this.links.get(next).modulation);
+        return true;
+      }
 
-      private void registerModulation(LXCompoundModulation modulation) {
-        modulation.range.addListener(this.rangeListener);
+      /**
+       * Notify listeners of a change, deferred until the end of a batch
+       */
+      private void notifyChanged() {
+        if (batchDepth > 0) {
+          batchChanged.add(this);
+        } else {
+          bang();
+        }
       }
 
-      private void unregisterModulation(LXCompoundModulation modulation) {
-        modulation.range.removeListener(this.rangeListener);
+      private Device getDevice() {
+        return Device.this;
       }
 
       public ModulationState getState() {
-        if (this.modulation != null) {
-          if (this.modulation.source instanceof LXModulator && isSMmodulator((LXModulator)this.modulation.source)) {
-            return ModulationState.SUPERMOD;
-          } else {
-            return ModulationState.OTHER;
-          }
+        if (this.numSuperModulations > 0) {
+          return ModulationState.SUPERMOD;
+        } else if (!this.links.isEmpty()) {
+          return ModulationState.OTHER;
         } else {
           return ModulationState.EMPTY;
         }
@@ -408,13 +821,38 @@ public class SuperMod extends LXComponent implements LXStudio.Plugin {
         return 0.5;
       }
 
+      /**
+       * Undo entry for the current knob gesture. Ticks within the gesture
+       * modify the range directly and update the entry.
+       */
+      private ModulationRangeCommand gesture = null;
+
+      /**
+       * Start or continue an undoable edit, creating the modulation if needed.
+       *
+       * @return true if there is a modulation to edit
+       */
+      private boolean beginEdit() {
+        final long now = System.currentTimeMillis();
+        if (this.modulation == null || this.gesture == null ||
+            this.gesture.modulation != this.modulation || this.gesture.isIdle(now)) {
+          this.gesture = new ModulationRangeCommand(this, device, this.target, this.modulation, templateIndex, templateVariation);
+          // Creating a modulation is enough; the listener notification will link it.
+          lx.command.perform(this.gesture);
+        }
+        this.gesture.lastEdit = now;
+        return this.modulation != null;
+      }
+
+      private void endEdit() {
+        this.gesture.toRange = this.modulation.range.getValue();
+      }
+
       @Override
       public BoundedParameter setNormalized(double value) {
-        if (this.modulation == null) {
-          createModulation(this);
-        }
-        if (this.modulation != null) {
+        if (beginEdit()) {
           this.modulation.range.setNormalized(value);
+          endEdit();
         }
         return this;
       }
@@ -429,23 +867,18 @@ public class SuperMod extends LXComponent implements LXStudio.Plugin {
 
       @Override
       public LXListenableNormalizedParameter incrementNormalized(double amount) {
-        if (this.modulation == null) {
-          createModulation(this);
-        }
-        if (this.modulation != null) {
+        if (beginEdit()) {
           this.modulation.range.incrementNormalized(amount);
+          endEdit();
         }
         return this;
       }
 
       @Override
       public LXListenableNormalizedParameter incrementNormalized(double amount, boolean wrap) {
-        if (this.modulation == null) {
-          // Creating a modulation is enough; the listener notification will link it.
-          createModulation(this);
-        }
-        if (this.modulation != null) {
+        if (beginEdit()) {
           this.modulation.range.incrementNormalized(amount, wrap);
+          endEdit();
         }
         return this;
       }
@@ -468,33 +901,37 @@ public class SuperMod extends LXComponent implements LXStudio.Plugin {
 
       public BoundedParameter clearModulation() {
         if (this.modulation != null) {
-          clearModulation(this.modulation);
+          this.gesture = null;
+          lx.command.perform(new ClearModulationCommand(device, this.modulation, this.selected.isSuperModulation));
         }
         return this;
       }
 
-      private void clearModulation(LXCompoundModulation modulation) {
-        LXModulationEngine modulationEngine = modulation.scope;
-        LXModulator modulator = (LXModulator)modulation.source;
-        if (isSMmodulator(modulator)) {
-          if (modulationEngine == device.modulation) {
-            modulationEngine.removeModulator(modulator);
-          } else {
-            modulationEngine.removeModulation(modulation);                      
-          }
-        } else {
-          // Non-SuperMod modulations will be reset but not deleted
-          this.modulation.range.reset();
-        }
-      }
-
       @Override
       public void dispose() {
-        if (this.modulation != null) {
-          unregisterModulation(this.modulation);
-          this.modulation = null;        
+        dispose(true);
+      }
+
+      /**
+       * @param unlink Whether to remove listeners from the target and modulation.
+       *               False when the device has already been disposed by LX.
+       */
+      private void dispose(boolean unlink) {
+        for (Link link : this.links) {
+          if (unlink) {
+            link.unregister();
+          } else if (link.modulation.scope == lx.engine.modulation) {
+            // Global modulators outlive the device
+            link.unregisterSourceLabel();
+          }
+        }
+        this.links.clear();
+        this.numSuperModulations = 0;
+        this.selected = null;
+        this.modulation = null;
+        if (unlink) {
+          this.target.removeModulationListener(this);
         }
-        this.target.removeModulationListener(this);
         super.dispose();
       }
 
@@ -504,8 +941,36 @@ public class SuperMod extends LXComponent implements LXStudio.Plugin {
     private final LXDeviceComponent device;
 
     private LXListenableNormalizedParameter[] remoteControls = new LXListenableNormalizedParameter[0];
+
+    /**
+     * Incremented whenever the remote controls change. Windows are rebuilt
+     * when it moves, otherwise their cached arrays are returned.
+     */
+    private int version = 0;
+
+    /**
+     * ModParameters are created on demand. A null entry is either
+     * not displayed by any surface or not eligible for modulation.
+     */
     private ModParameter[] remoteMods = new ModParameter[0];
 
+    /**
+     * Range of remote mods displayed by a surface
+     */
+    private class Window {
+      private int offset;
+      private int count;
+      private int version = -1;
+      private ModParameter[] mods;
+    }
+
+    private final Map<Object, Window> windows = new IdentityHashMap<Object, Window>();
+
+    /**
+     * Set when the device left the project while pinned by a surface
+     */
+    private boolean isRemoved = false;
+
     public Device(LXDeviceComponent device) {
       this.device = device;
       // Don't register for device.remoteControlsChanged,
@@ -514,9 +979,57 @@ public class SuperMod extends LXComponent implements LXStudio.Plugin {
 
     /**
      * Retrieve the array of parameters than can be used to control modulations
-     * on the target device.
+     * on the target device. Creates a ModParameter for every remote control,
+     * prefer the windowed version when only part of them will be displayed.
      */
     public ModParameter[] getRemoteMods() {
+      refreshRemoteControls();
+      for (int i = 0; i < this.remoteMods.length; i++) {
+        getRemoteMod(i);
+      }
+      return this.remoteMods;
+    }
+
+    /**
+     * Retrieve the ModParameters for the range of remote controls displayed
+     * by a surface. ModParameters outside of every surface's window are released.
+     * The same array is returned until the remote controls or the window change.
+     */
+    private ModParameter[] getRemoteMods(Object owner, int offset, int count) {
+      refreshRemoteControls();
+
+      Window window = this.windows.get(owner);
+      if (window == null) {
+        window = new Window();
+        this.windows.put(owner, window);
+      }
+      if (window.version == this.version && window.offset == offset && window.count == count) {
+        return window.mods;
+      }
+      window.offset = offset;
+      window.count = count;
+      releaseUnwindowedMods();
+
+      final int length = LXUtils.max(0, LXUtils.min(count, this.remoteMods.length - offset));
+      // New array so that callers can compare by identity
+      window.mods = new ModParameter[length];
+      for (int i = 0; i < length; i++) {
+        window.mods[i] = getRemoteMod(offset + i);
+      }
+      window.version = this.version;
+      return window.mods;
+    }
+
+    /**
+     * Called when a surface stops displaying this device
+     */
+    private void releaseWindow(Object owner) {
+      if (this.windows.remove(owner) != null) {
+        releaseUnwindowedMods();
+      }
+    }
+
+    private void refreshRemoteControls() {
       LXListenableNormalizedParameter[] newRemoteControls = device.getRemoteControls();
       final int length = newRemoteControls.length;
 
@@ -524,10 +1037,8 @@ public class SuperMod extends LXComponent implements LXStudio.Plugin {
         // Our remote control collection is definitely stale
         disposeRemoteMods();
         this.remoteMods = new ModParameter[length];
-        for (int i = 0; i < length; i++) {
-          this.remoteMods[i] = createModParameter(newRemoteControls[i]);
-        }
-        this.remoteControls = newRemoteControls;
+        this.remoteControls = newRemoteControls.clone();
+        ++this.version;
       } else {
         // Length of remote controls didn't change. Check each one to
         // make sure it is the same. You might think we could avoid this
@@ -539,13 +1050,42 @@ public class SuperMod extends LXComponent implements LXStudio.Plugin {
             this.remoteControls[i] = newRemoteControls[i];
             if (this.remoteMods[i] != null) {
               this.remoteMods[i].dispose();
+              this.remoteMods[i] = null;
             }
-            this.remoteMods[i] = createModParameter(newRemoteControls[i]);
+            ++this.version;
           }
         }
       }
+    }
 
-      return this.remoteMods;
+    private ModParameter getRemoteMod(int i) {
+      // Creating a mod doesn't change the version, windows that
+      // already hold this index hold the same mod.
+      if (this.remoteMods[i] == null) {
+        this.remoteMods[i] = createModParameter(this.remoteControls[i]);
+      }
+      return this.remoteMods[i];
+    }
+
+    private boolean isWindowed(int i) {
+      for (Window window : this.windows.values()) {
+        if (i >= window.offset && i < window.offset + window.count) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    /**
+     * Dispose mods outside every window. No window holds them, so the version is unchanged.
+     */
+    private void releaseUnwindowedMods() {
+      for (int i = 0; i < this.remoteMods.length; i++) {
+        if (this.remoteMods[i] != null && !isWindowed(i)) {
+          this.remoteMods[i].dispose();
+          this.remoteMods[i] = null;
+        }
+      }
     }
 
     private ModParameter createModParameter(LXListenableNormalizedParameter param) {
@@ -555,24 +1095,26 @@ public class SuperMod extends LXComponent implements LXStudio.Plugin {
       return null;
     }
 
-    private LXCompoundModulation createModulation(ModParameter mod) {
+    private LXCompoundModulation createModulation(Target target, int templateIndex, int templateVariation) {
+      if (!canCreateModulation(templateIndex)) {
+        LOG.warning("No modulator for template " + (templateIndex + 1) + ", cannot modulate " + target.getLabel());
+        return null;
+      }
       LXModulator modulator = activeGlobalModulators[templateIndex];
       LXModulationEngine modulationEngine;
       if (modulator != null) {
         // Found user-created global modulator
         modulationEngine = lx.engine.modulation;
       } else {
-        // Create a device-level modulator based on template settings
+        // Device-level modulator based on template settings
         modulationEngine = device.modulation;
-        final String label = SUPERMOD_PREFIX + mod.target.getLabel();
-        modulator = createModulator(label, templateIndex, templateVariation);
-        modulator.running.setValue(true);
+        modulator = checkoutModulator(SUPERMOD_PREFIX + target.getLabel(), templateIndex, templateVariation);
         modulationEngine.addModulator(modulator);
       }
 
       try {
         // Add Modulation (links source -> target)
-        LXCompoundModulation modulation = new LXCompoundModulation(modulationEngine, (LXNormalizedParameter) modulator, mod.target);
+        LXCompoundModulation modulation = new LXCompoundModulation(modulationEngine, (LXNormalizedParameter) modulator, target);
         modulationEngine.addModulation(modulation);
         return modulation;
       } catch (ModulationException e) {
@@ -586,22 +1128,58 @@ public class SuperMod extends LXComponent implements LXStudio.Plugin {
       return modulator.getLabel().startsWith(SUPERMOD_PREFIX);
     }
 
+    private boolean isSMmodulation(LXCompoundModulation modulation) {
+      return modulation != null && modulation.source instanceof LXModulator && isSMmodulator((LXModulator) modulation.source);
+    }
+
     private void disposeRemoteMods() {
+      disposeRemoteMods(true);
+    }
+
+    private void disposeRemoteMods(boolean unlink) {
       for (ModParameter remoteMod : this.remoteMods) {
         if (remoteMod != null) {
-          remoteMod.dispose();
+          remoteMod.dispose(unlink);
         }
       }
     }
 
+    /**
+     * Whether the wrapped device is still part of the project
+     */
+    private boolean isDeviceAlive() {
+      return lx.getComponent(this.device.getId()) == this.device;
+    }
+
     public void dispose() {
-      disposeRemoteMods();
+      final boolean isAlive = isDeviceAlive();
+      // Targets of a removed device have already been disposed by LX
+      disposeRemoteMods(isAlive);
+      this.windows.clear();
       this.remoteMods = null;
       this.remoteControls = null;
     }
   }
 
-  private final Map<LXDeviceComponent, Device> devices = new HashMap<LXDeviceComponent, Device>();
+  /*
+   * Device cache
+   */
+
+  /**
+   * Maximum number of device wrappers to keep. Wrappers pinned by a
+   * midi surface are never evicted, so the cache can briefly exceed this.
+   */
+  private static final int MAX_DEVICES = 16;
+
+  /**
+   * Device wrappers in access order, least recently used first
+   */
+  private final LinkedHashMap<LXDeviceComponent, Device> devices = new LinkedHashMap<LXDeviceComponent, Device>(MAX_DEVICES, .75f, true);
+
+  /**
+   * The device each midi surface is currently displaying
+   */
+  private final Map<Object, LXDeviceComponent> pinnedDevices = new IdentityHashMap<Object, LXDeviceComponent>();
 
   /**
    * Retrieve a device wrapper or create a new one if it does not exist
@@ -609,15 +1187,47 @@ public class SuperMod extends LXComponent implements LXStudio.Plugin {
   private Device getDevice(LXDeviceComponent device) {
     Device wrapper = this.devices.get(device);
     if (wrapper == null) {
+      evictDevices();
       wrapper = new Device(device);
       this.devices.put(device, wrapper);
     }
     return wrapper;
   }
 
+  private boolean isPinned(LXDeviceComponent device) {
+    return this.pinnedDevices.containsValue(device);
+  }
+
   /**
-   * MIDI surfaces will call this method to retrieve a list of
-   * remote mods (ModParameters) for a device. There will be one
+   * Remove wrappers for devices that are no longer in the project, in case
+   * a removal was missed, then remove least recently used unpinned wrappers
+   * until there is room for one more.
+   */
+  private void evictDevices() {
+    Iterator<Device> iter = this.devices.values().iterator();
+    while (iter.hasNext()) {
+      Device wrapper = iter.next();
+      if (!wrapper.isDeviceAlive()) {
+        debug("Evicting removed device " + wrapper.device.getLabel());
+        iter.remove();
+        wrapper.dispose();
+      }
+    }
+
+    iter = this.devices.values().iterator();
+    while (this.devices.size() >= MAX_DEVICES && iter.hasNext()) {
+      Device wrapper = iter.next();
+      if (!isPinned(wrapper.device)) {
+        debug("Evicting device " + wrapper.device.getLabel());
+        iter.remove();
+        wrapper.dispose();
+      }
+    }
+  }
+
+  /**
+   * MIDI surfaces will call this method to retrieve a list of
+   * remote mods (ModParameters) for a device. There will be one
    * ModParameter per [eligible] device remote control.
    */
   public Device.ModParameter[] getRemoteMods(LXDeviceComponent device) {
@@ -625,6 +1235,599 @@ public class SuperMod extends LXComponent implements LXStudio.Plugin {
     return deviceWrapper.getRemoteMods();
   }
 
+  /**
+   * Retrieve a window of remote mods for a device and pin its wrapper to the owner,
+   * so it will not be evicted while the owner is displaying it. ModParameters
+   * are only created for the window. Any device previously pinned by this owner
+   * is unpinned and its ModParameters outside of other windows are released.
+   */
+  public Device.ModParameter[] getRemoteMods(Object owner, LXDeviceComponent device, int offset, int count) {
+    Objects.requireNonNull(owner, "May not pin device to null owner");
+    final LXDeviceComponent previous = this.pinnedDevices.put(owner, device);
+    if (previous != null && previous != device) {
+      releaseWindow(owner, previous);
+    }
+    return getDevice(device).getRemoteMods(owner, offset, count);
+  }
+
+  /**
+   * Called by a midi surface when it is no longer displaying remote mods
+   */
+  public void releaseRemoteMods(Object owner) {
+    final LXDeviceComponent previous = this.pinnedDevices.remove(owner);
+    if (previous != null) {
+      releaseWindow(owner, previous);
+    }
+  }
+
+  private void releaseWindow(Object owner, LXDeviceComponent device) {
+    // Don't touch access order
+    for (Device wrapper : this.devices.values()) {
+      if (wrapper.device == device) {
+        wrapper.releaseWindow(owner);
+        if (wrapper.isRemoved) {
+          evictDevice(device);
+        }
+        return;
+      }
+    }
+  }
+
+  /*
+   * Device removal. Wrappers are disposed as soon as their device leaves the
+   * project, so their ModParameters stop listening to its targets right away.
+   */
+
+  private final LXChannel.Listener busListener = new LXChannel.Listener() {
+    @Override
+    public void effectRemoved(LXBus bus, LXEffect effect) {
+      evictDevice(effect);
+    }
+
+    @Override
+    public void patternRemoved(LXChannel channel, LXPattern pattern) {
+      evictDevice(pattern);
+    }
+  };
+
+  private final LXMixerEngine.Listener mixerListener = new LXMixerEngine.Listener() {
+    @Override
+    public void channelAdded(LXMixerEngine mixer, LXAbstractChannel channel) {
+      listenBus(channel);
+    }
+
+    @Override
+    public void channelRemoved(LXMixerEngine mixer, LXAbstractChannel channel) {
+      unlistenBus(channel);
+      evictDevices(channel);
+    }
+
+    @Override
+    public void channelMoved(LXMixerEngine mixer, LXAbstractChannel channel) { }
+  };
+
+  private void listenBus(LXBus bus) {
+    if (bus instanceof LXChannel) {
+      ((LXChannel) bus).addListener(this.busListener);
+    } else {
+      bus.addListener(this.busListener);
+    }
+  }
+
+  private void unlistenBus(LXBus bus) {
+    if (bus instanceof LXChannel) {
+      ((LXChannel) bus).removeListener(this.busListener);
+    } else {
+      bus.removeListener(this.busListener);
+    }
+  }
+
+  private void unlistenBuses() {
+    this.lx.engine.mixer.removeListener(this.mixerListener);
+    for (LXAbstractChannel channel : this.lx.engine.mixer.channels) {
+      unlistenBus(channel);
+    }
+    unlistenBus(this.lx.engine.mixer.masterBus);
+  }
+
+  private void evictDevice(LXDeviceComponent device) {
+    final Device wrapper = this.devices.get(device);
+    if (wrapper == null) {
+      return;
+    }
+    if (isPinned(device)) {
+      // A surface is still showing its ModParameters, dispose once it lets go
+      wrapper.isRemoved = true;
+      return;
+    }
+    debug("Evicting removed device " + device.getLabel());
+    this.devices.remove(device);
+    wrapper.dispose();
+  }
+
+  /**
+   * Evict the wrappers of every device on a bus that is being removed
+   */
+  private void evictDevices(LXBus bus) {
+    final List<LXDeviceComponent> removed = new ArrayList<LXDeviceComponent>();
+    for (LXDeviceComponent device : this.devices.keySet()) {
+      if (isOnBus(device, bus)) {
+        removed.add(device);
+      }
+    }
+    for (LXDeviceComponent device : removed) {
+      evictDevice(device);
+    }
+  }
+
+  private static boolean isOnBus(LXComponent component, LXBus bus) {
+    for (LXComponent parent = component.getParent(); parent != null; parent = parent.getParent()) {
+      if (parent == bus) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /*
+   * Batch operations
+   */
+
+  private int batchDepth = 0;
+
+  /**
+   * ModParameters that changed during the current batch
+   */
+  private final Set<Device.ModParameter> batchChanged = Collections.newSetFromMap(new IdentityHashMap<Device.ModParameter, Boolean>());
+
+  /**
+   * Hold ModParameter notifications until the matching endBatch()
+   */
+  private void beginBatch() {
+    ++this.batchDepth;
+  }
+
+  /**
+   * Send one notification for each ModParameter that changed during the batch
+   */
+  private void endBatch() {
+    if (--this.batchDepth == 0 && !this.batchChanged.isEmpty()) {
+      final Device.ModParameter[] changed = this.batchChanged.toArray(new Device.ModParameter[0]);
+      this.batchChanged.clear();
+      for (Device.ModParameter mod : changed) {
+        mod.bang();
+      }
+    }
+  }
+
+  /**
+   * Undoable creation of SuperMod modulations on a group of targets
+   */
+  private class ApplyTemplateCommand extends LXCommand {
+
+    private final LXDeviceComponent device;
+    private final List<Target> targets;
+    private final int templateIndex;
+    private final int templateVariation;
+    private final List<LXCompoundModulation> modulations = new ArrayList<LXCompoundModulation>();
+
+    private ApplyTemplateCommand(LXDeviceComponent device, List<Target> targets, int templateIndex, int templateVariation) {
+      this.device = device;
+      this.targets = targets;
+      this.templateIndex = templateIndex;
+      this.templateVariation = templateVariation;
+    }
+
+    @Override
+    public String getDescription() {
+      return "Apply SuperMod Template";
+    }
+
+    @Override
+    public void perform(LX lx) throws InvalidCommandException {
+      if (lx.getComponent(this.device.getId()) != this.device) {
+        throw new InvalidCommandException("Device no longer exists: " + this.device.getLabel());
+      }
+      final Device wrapper = getDevice(this.device);
+      beginBatch();
+      try {
+        for (Target target : this.targets) {
+          LXCompoundModulation modulation = wrapper.createModulation(target, this.templateIndex, this.templateVariation);
+          if (modulation != null) {
+            this.modulations.add(modulation);
+          }
+        }
+      } finally {
+        endBatch();
+      }
+    }
+
+    @Override
+    public void undo(LX lx) throws InvalidCommandException {
+      beginBatch();
+      try {
+        for (int i = this.modulations.size() - 1; i >= 0; i--) {
+          removeModulation(this.modulations.get(i));
+        }
+        this.modulations.clear();
+      } finally {
+        endBatch();
+      }
+    }
+  }
+
+  /**
+   * Remove a modulation. A device-level SuperMod modulator is removed with it
+   * and its pool refilled, unless the user has mapped it elsewhere.
+   */
+  private void removeModulation(LXCompoundModulation modulation) {
+    if (this.lx.getComponent(modulation.getId()) != modulation) {
+      // Already gone
+      return;
+    }
+    final LXModulationEngine scope = modulation.scope;
+    if (scope != this.lx.engine.modulation &&
+        modulation.source instanceof LXModulator &&
+        ((LXModulator) modulation.source).getLabel().startsWith(SUPERMOD_PREFIX) &&
+        !isModulatorShared(modulation)) {
+      final LXModulator modulator = (LXModulator) modulation.source;
+      scope.removeModulator(modulator);
+      releaseModulator(modulator);
+    } else {
+      scope.removeModulation(modulation);
+    }
+  }
+
+  /**
+   * Whether the source of a modulation has other modulations in the same scope
+   */
+  private static boolean isModulatorShared(LXCompoundModulation modulation) {
+    for (LXCompoundModulation other : modulation.scope.modulations) {
+      if (other != modulation && other.source == modulation.source) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Edits to a ModParameter during one knob gesture, closed after
+   * a short idle time. Creates the modulation if there was none.
+   */
+  private class ModulationRangeCommand extends LXCommand {
+
+    private static final long GESTURE_IDLE_MS = 1000;
+
+    private final Device.ModParameter owner;
+    private final LXDeviceComponent device;
+    private final Target target;
+    private final int templateIndex;
+    private final int templateVariation;
+
+    private LXCompoundModulation modulation;
+    private boolean isCreate;
+    private boolean isRedo = false;
+    private double fromRange;
+    private double toRange;
+    private long lastEdit;
+
+    private ModulationRangeCommand(Device.ModParameter owner, LXDeviceComponent device, Target target, LXCompoundModulation modulation, int templateIndex, int templateVariation) {
+      this.owner = owner;
+      this.device = device;
+      this.target = target;
+      this.modulation = modulation;
+      this.isCreate = modulation == null;
+      this.templateIndex = templateIndex;
+      this.templateVariation = templateVariation;
+    }
+
+    private boolean isIdle(long now) {
+      return now - this.lastEdit > GESTURE_IDLE_MS;
+    }
+
+    @Override
+    public String getDescription() {
+      return "Change SuperMod " + this.target.getLabel();
+    }
+
+    @Override
+    public void perform(LX lx) throws InvalidCommandException {
+      if (this.isCreate) {
+        if (lx.getComponent(this.device.getId()) != this.device) {
+          throw new InvalidCommandException("Device no longer exists: " + this.device.getLabel());
+        }
+        this.modulation = getDevice(this.device).createModulation(this.target, this.templateIndex, this.templateVariation);
+        if (this.modulation == null) {
+          throw new InvalidCommandException("Could not create modulation for " + this.target.getLabel());
+        }
+      } else if (lx.getComponent(this.modulation.getId()) != this.modulation) {
+        throw new InvalidCommandException("Modulation no longer exists: " + this.target.getLabel());
+      }
+      if (this.isRedo) {
+        this.modulation.range.setValue(this.toRange);
+      } else {
+        this.fromRange = this.toRange = this.modulation.range.getValue();
+      }
+    }
+
+    @Override
+    public void undo(LX lx) throws InvalidCommandException {
+      this.isRedo = true;
+      // Further ticks must start a new gesture rather than extend an undone one
+      if (this.owner.gesture == this) {
+        this.owner.gesture = null;
+      }
+      if (this.isCreate) {
+        removeModulation(this.modulation);
+      } else if (lx.getComponent(this.modulation.getId()) == this.modulation) {
+        this.modulation.range.setValue(this.fromRange);
+      } else {
+        throw new InvalidCommandException("Modulation no longer exists: " + this.target.getLabel());
+      }
+    }
+  }
+
+  /**
+   * Clear a ModParameter. SuperMod modulations are removed and recreated on undo
+   * with the same template and range, other modulations have their range reset.
+   */
+  private class ClearModulationCommand extends LXCommand {
+
+    private final LXDeviceComponent device;
+    private final Target target;
+    private final boolean isSuperModulation;
+    private final int templateIndex;
+    private final int templateVariation;
+    private LXCompoundModulation modulation;
+    private double range;
+
+    private ClearModulationCommand(LXDeviceComponent device, LXCompoundModulation modulation, boolean isSuperModulation) {
+      this.device = device;
+      this.target = modulation.target;
+      this.modulation = modulation;
+      this.isSuperModulation = isSuperModulation;
+      final int[] template = getModulatorTemplate((LXModulator) modulation.source);
+      this.templateIndex = template[0];
+      this.templateVariation = template[1];
+    }
+
+    @Override
+    public String getDescription() {
+      return "Clear SuperMod " + this.target.getLabel();
+    }
+
+    @Override
+    public void perform(LX lx) throws InvalidCommandException {
+      if (lx.getComponent(this.modulation.getId()) != this.modulation) {
+        throw new InvalidCommandException("Modulation no longer exists: " + this.target.getLabel());
+      }
+      this.range = this.modulation.range.getValue();
+      if (this.isSuperModulation) {
+        removeModulation(this.modulation);
+      } else {
+        // Non-SuperMod modulations will be reset but not deleted
+        this.modulation.range.reset();
+      }
+    }
+
+    @Override
+    public void undo(LX lx) throws InvalidCommandException {
+      if (this.isSuperModulation) {
+        if (lx.getComponent(this.device.getId()) != this.device) {
+          throw new InvalidCommandException("Device no longer exists: " + this.device.getLabel());
+        }
+        if (!canCreateModulation(this.templateIndex)) {
+          // Templates beyond the tempos only exist while their global modulator does
+          throw new InvalidCommandException("SuperMod template " + (this.templateIndex + 1) + " no longer has a modulator");
+        }
+        this.modulation = getDevice(this.device).createModulation(this.target, this.templateIndex, this.templateVariation);
+        if (this.modulation == null) {
+          throw new InvalidCommandException("Could not recreate modulation for " + this.target.getLabel());
+        }
+      } else if (lx.getComponent(this.modulation.getId()) != this.modulation) {
+        throw new InvalidCommandException("Modulation no longer exists: " + this.target.getLabel());
+      }
+      this.modulation.range.setValue(this.range);
+    }
+  }
+
+  /**
+   * Called by [APCMini] midi surface to apply the current template and variation
+   * to every mod in a window that does not already have a SuperMod modulation.
+   * Runs as one undoable command with a single notification per mod.
+   */
+  public void applyTemplate(APCminiMk2 apCminiMk2, Device.ModParameter[] mods) {
+    LXDeviceComponent device = null;
+    final List<Target> targets = new ArrayList<Target>();
+    for (Device.ModParameter mod : mods) {
+      if (mod != null && mod.getState() != ModulationState.SUPERMOD) {
+        device = mod.getDevice().device;
+        targets.add(mod.target);
+      }
+    }
+    if (!targets.isEmpty()) {
+      this.lx.command.perform(new ApplyTemplateCommand(device, targets, this.templateIndex, this.templateVariation));
+    }
+  }
+
+  /*
+   * Bulk clear
+   */
+
+  /**
+   * Remove every SuperMod modulation on a device
+   */
+  public void clearDevice(APCminiMk2 apCminiMk2, LXDeviceComponent device) {
+    if (device != null) {
+      final List<LXDeviceComponent> devices = new ArrayList<LXDeviceComponent>();
+      devices.add(device);
+      clearDevices(devices);
+    }
+  }
+
+  /**
+   * Remove every SuperMod modulation on the patterns and effects of a channel or bus
+   */
+  public void clearChannel(APCminiMk2 apCminiMk2, LXBus bus) {
+    if (bus != null) {
+      final List<LXDeviceComponent> devices = new ArrayList<LXDeviceComponent>();
+      addDevices(bus, devices);
+      clearDevices(devices);
+    }
+  }
+
+  /**
+   * Remove every SuperMod modulation in the project
+   */
+  public void clearAll(APCminiMk2 apCminiMk2) {
+    final List<LXDeviceComponent> devices = new ArrayList<LXDeviceComponent>();
+    for (LXAbstractChannel channel : this.lx.engine.mixer.channels) {
+      addDevices(channel, devices);
+    }
+    addDevices(this.lx.engine.mixer.masterBus, devices);
+    clearDevices(devices);
+  }
+
+  private void addDevices(LXBus bus, List<LXDeviceComponent> devices) {
+    if (bus instanceof LXChannel) {
+      devices.addAll(((LXChannel) bus).patterns);
+    }
+    devices.addAll(bus.effects);
+  }
+
+  /**
+   * Remove every SuperMod modulation on the devices as one undoable command
+   */
+  private void clearDevices(List<LXDeviceComponent> devices) {
+    if (!getSuperModulations(devices).isEmpty()) {
+      this.lx.command.perform(new ClearDevicesCommand(devices));
+    }
+  }
+
+  /**
+   * Undoable removal of every SuperMod modulation on a group of devices.
+   * Each modulation is recorded so undo can recreate it with the same
+   * template and range.
+   */
+  private class ClearDevicesCommand extends LXCommand {
+
+    private class Cleared {
+      private final LXDeviceComponent device;
+      private final Target target;
+      private final int templateIndex;
+      private final int templateVariation;
+      private final double range;
+
+      private Cleared(LXCompoundModulation modulation) {
+        this.device = getOwningDevice(modulation.target);
+        this.target = modulation.target;
+        final int[] template = getModulatorTemplate((LXModulator) modulation.source);
+        this.templateIndex = template[0];
+        this.templateVariation = template[1];
+        this.range = modulation.range.getValue();
+      }
+    }
+
+    private final List<LXDeviceComponent> devices;
+    private final List<Cleared> cleared = new ArrayList<Cleared>();
+
+    private ClearDevicesCommand(List<LXDeviceComponent> devices) {
+      this.devices = devices;
+    }
+
+    @Override
+    public String getDescription() {
+      return "Clear SuperMod Modulations";
+    }
+
+    @Override
+    public void perform(LX lx) throws InvalidCommandException {
+      // Devices may have been removed since the first perform
+      final List<LXDeviceComponent> devices = new ArrayList<LXDeviceComponent>();
+      for (LXDeviceComponent device : this.devices) {
+        if (lx.getComponent(device.getId()) == device) {
+          devices.add(device);
+        }
+      }
+      final List<LXCompoundModulation> modulations = getSuperModulations(devices);
+      debug("Clearing " + modulations.size() + " SuperMod modulations");
+
+      // Collect every modulation, then remove them in one pass
+      // with a single notification per affected ModParameter.
+      this.cleared.clear();
+      for (LXCompoundModulation modulation : modulations) {
+        this.cleared.add(new Cleared(modulation));
+      }
+      beginBatch();
+      try {
+        for (LXCompoundModulation modulation : modulations) {
+          removeModulation(modulation);
+        }
+      } finally {
+        endBatch();
+      }
+    }
+
+    @Override
+    public void undo(LX lx) throws InvalidCommandException {
+      int failed = 0;
+      beginBatch();
+      try {
+        for (Cleared entry : this.cleared) {
+          LXCompoundModulation modulation = null;
+          if (lx.getComponent(entry.device.getId()) == entry.device) {
+            modulation = getDevice(entry.device).createModulation(entry.target, entry.templateIndex, entry.templateVariation);
+          }
+          if (modulation != null) {
+            modulation.range.setValue(entry.range);
+          } else {
+            ++failed;
+          }
+        }
+      } finally {
+        endBatch();
+      }
+      if (failed > 0) {
+        throw new InvalidCommandException("Could not recreate " + failed + " of " + this.cleared.size() + " SuperMod modulations");
+      }
+    }
+  }
+
+  /**
+   * SuperMod modulations to targets on the devices, from device-level
+   * SuperMod modulators or from global template modulators.
+   */
+  private List<LXCompoundModulation> getSuperModulations(List<LXDeviceComponent> devices) {
+    final List<LXCompoundModulation> modulations = new ArrayList<LXCompoundModulation>();
+    for (LXDeviceComponent device : devices) {
+      for (LXCompoundModulation modulation : device.modulation.modulations) {
+        if (modulation.source instanceof LXModulator &&
+            ((LXModulator) modulation.source).getLabel().startsWith(SUPERMOD_PREFIX)) {
+          modulations.add(modulation);
+        }
+      }
+    }
+
+    final Set<LXDeviceComponent> deviceSet = Collections.newSetFromMap(new IdentityHashMap<LXDeviceComponent, Boolean>());
+    deviceSet.addAll(devices);
+    for (LXCompoundModulation modulation : this.lx.engine.modulation.modulations) {
+      if (modulation.source instanceof LXModulator &&
+          this.templateIndices.containsKey(modulation.source) &&
+          deviceSet.contains(getOwningDevice(modulation.target))) {
+        modulations.add(modulation);
+      }
+    }
+    return modulations;
+  }
+
+  private static LXDeviceComponent getOwningDevice(LXParameter parameter) {
+    LXComponent component = parameter.getParent();
+    while (component != null && !(component instanceof LXDeviceComponent)) {
+      component = component.getParent();
+    }
+    return (LXDeviceComponent) component;
+  }
+
   /*
    * SuperMod State
    */
@@ -666,11 +1869,21 @@ public class SuperMod extends LXComponent implements LXStudio.Plugin {
    * @param templateVariation
    */
   public void setTemplate(APCminiMk2 apCminiMk2, int templateIndex, int templateVariation) {
-    templateIndex = LXUtils.constrain(templateIndex, 0, this.tempos.size() - 1);
+    templateIndex = LXUtils.constrain(templateIndex, 0, MAX_TEMPLATES - 1);
+    if (!canCreateModulation(templateIndex)) {
+      return;
+    }
     this.templateIndex = templateIndex;
     this.templateVariation = templateVariation;
   }
 
+  /**
+   * Whether a template can be selected, either it has a tempo or a global modulator
+   */
+  public boolean isTemplateAvailable(int index) {
+    return canCreateModulation(index);
+  }
+
   public boolean isTemplateGlobal(int index) {
     if (index < 0 || index >= this.activeGlobalModulators.length) {
       return false;
@@ -727,10 +1940,14 @@ public class SuperMod extends LXComponent implements LXStudio.Plugin {
     for (int i = this.listeners.size() - 1; i >= 0; i--) {
       this.listeners.get(i).willDispose();
     }
-    for (Entry<LXDeviceComponent, Device> entry : this.devices.entrySet()) {
-      entry.getValue().dispose();
+    for (Device device : this.devices.values()) {
+      device.dispose();
     }
     this.devices.clear();
+    this.pinnedDevices.clear();
+    this.lx.engine.removeLoopTask(this.poolTask);
+    unlistenBuses();
+    disposePools();
     unlistenGlobalModulators();
     this.lx.engine.modulation.removeListener(this.globalModulationListener);
     super.dispose();